@@ -2,6 +2,8 @@ package cn.lai.jchat;
 
 public class Constants {
     public final static String DOWNLOAD_PATH = "download";
-    public final static int MAX_DOWNLOAD_WORKERS = 2;
+    public final static String FILE_INDEX_PATH = DOWNLOAD_PATH + "/.index";
+    // 下载中的文件名后缀，完成后去掉
+    public final static String PART_SUFFIX = ".part";
 
 }
@@ -4,6 +4,7 @@ import javafx.application.Platform;
 
 import javax.swing.*;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.util.Locale;
 
@@ -18,6 +19,19 @@ public class Utils {
         }
     }
 
+    /**
+     * 删除文件或整个目录，失败时返回 false
+     */
+    public static boolean deleteRecursively(File file) {
+        File[] children = file.isDirectory() ? file.listFiles() : null;
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        return file.delete() || !file.exists();
+    }
+
     public static <T, K> int findIndexByKey(Iterable<T> list, K key, Indicator<T, K> indicator) {
         if (list == null) return -1;
         if (key == null) return -1;
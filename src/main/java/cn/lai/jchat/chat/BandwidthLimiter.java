@@ -0,0 +1,74 @@
+package cn.lai.jchat.chat;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 一个方向的文件传输限速，同时受总速率和每个用户的速率限制。聊天消息不经过这里
+ */
+public class BandwidthLimiter {
+    private final TokenBucket total;
+    private final Map<UUID, TokenBucket> peers = new ConcurrentHashMap<>();
+    // 单独设置过速率的用户
+    private final Map<UUID, Long> peerRates = new ConcurrentHashMap<>();
+    private volatile long peerRate;
+
+    /**
+     * @param rate     总速率，每秒字节数，不大于 0 时不限速
+     * @param peerRate 每个用户的默认速率
+     */
+    public BandwidthLimiter(long rate, long peerRate) {
+        this.total = new TokenBucket(rate);
+        this.peerRate = peerRate;
+    }
+
+    public void setRate(long rate) {
+        total.setRate(rate);
+    }
+
+    public long getRate() {
+        return total.getRate();
+    }
+
+    public void setPeerRate(long peerRate) {
+        this.peerRate = peerRate;
+        peers.forEach((userId, bucket) -> {
+            if (!peerRates.containsKey(userId))
+                bucket.setRate(peerRate);
+        });
+    }
+
+    /**
+     * 单独设置某个用户的速率，rate 为 null 时恢复默认速率
+     */
+    public void setPeerRate(UUID userId, Long rate) {
+        if (rate == null)
+            peerRates.remove(userId);
+        else
+            peerRates.put(userId, rate);
+        getBucket(userId).setRate(rate == null ? peerRate : rate);
+    }
+
+    public boolean isLimited(UUID userId) {
+        return total.isLimited() || getBucket(userId).isLimited();
+    }
+
+    /**
+     * 传输 bytes 字节前后调用，超出速率时休眠
+     */
+    public void acquire(UUID userId, long bytes) throws InterruptedIOException {
+        try {
+            getBucket(userId).acquire(bytes);
+            total.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("限速等待被中断");
+        }
+    }
+
+    private TokenBucket getBucket(UUID userId) {
+        return peers.computeIfAbsent(userId, k -> new TokenBucket(peerRates.getOrDefault(k, peerRate)));
+    }
+}
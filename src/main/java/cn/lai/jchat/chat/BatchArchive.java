@@ -0,0 +1,157 @@
+package cn.lai.jchat.chat;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+/**
+ * 把多个文件和目录连续写成一个流，接收方边收边解开，不再为每个文件单独请求。
+ * 格式为若干条记录："F 大小 相对路径" 后跟文件内容，"D 相对路径" 表示目录，最后一行 "E"
+ */
+public class BatchArchive {
+    private static final String ENTRY_FILE = "F";
+    private static final String ENTRY_DIR = "D";
+    private static final String END = "E";
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final Logger logger = LogManager.getLogger(BatchArchive.class.getSimpleName());
+
+    public interface Listener {
+        /**
+         * 每写入或读出一段文件内容后调用，可以在这里限速
+         */
+        void onTransferred(long bytes) throws IOException;
+    }
+
+    /**
+     * 显示在消息里的名称
+     */
+    public static String getName(List<File> roots) {
+        String name = roots.get(0).getName();
+        return roots.size() == 1 ? name : name + " 等 " + roots.size() + " 项";
+    }
+
+    /**
+     * 所有文件内容的总大小，不含记录头
+     */
+    public static long getTotalSize(List<File> roots) throws IOException {
+        long size = 0;
+        for (File root : roots) {
+            if (!root.isDirectory()) {
+                size += root.length();
+                continue;
+            }
+            try (Stream<Path> paths = Files.walk(root.toPath())) {
+                Iterator<Path> iterator = paths.iterator();
+                while (iterator.hasNext()) {
+                    Path path = iterator.next();
+                    if (Files.isRegularFile(path))
+                        size += Files.size(path);
+                }
+            }
+        }
+        return size;
+    }
+
+    public static void write(List<File> roots, BufferedSink sink, Listener listener, BooleanSupplier running)
+            throws IOException {
+        for (File root : roots) {
+            if (!running.getAsBoolean()) throw new IOException("已停止");
+            if (!root.isDirectory()) {
+                writeFile(root.toPath(), root.getName(), sink, listener);
+                continue;
+            }
+            Path base = root.toPath();
+            try (Stream<Path> paths = Files.walk(base)) {
+                Iterator<Path> iterator = paths.iterator();
+                while (iterator.hasNext() && running.getAsBoolean()) {
+                    Path path = iterator.next();
+                    String name = root.getName();
+                    if (!path.equals(base))
+                        name += "/" + base.relativize(path).toString().replace(File.separatorChar, '/');
+                    if (name.indexOf('\n') != -1) {
+                        logger.warn("跳过无法传输的文件名 " + path);
+                        continue;
+                    }
+                    if (Files.isDirectory(path))
+                        sink.writeUtf8(ENTRY_DIR + " " + name + "\n");
+                    else if (Files.isRegularFile(path))
+                        writeFile(path, name, sink, listener);
+                }
+            }
+        }
+        if (!running.getAsBoolean()) throw new IOException("已停止");
+        sink.writeUtf8(END + "\n");
+        sink.flush();
+    }
+
+    private static void writeFile(Path path, String name, BufferedSink sink, Listener listener) throws IOException {
+        long remainSize = Files.size(path);
+        sink.writeUtf8(ENTRY_FILE + " " + remainSize + " " + name + "\n");
+        try (BufferedSource source = Okio.buffer(Okio.source(path))) {
+            while (remainSize > 0) {
+                long size = Math.min(remainSize, CHUNK_SIZE);
+                // 文件变短时流已经无法继续
+                sink.write(source, size);
+                remainSize -= size;
+                listener.onTransferred(size);
+            }
+        }
+    }
+
+    /**
+     * 把流解开到 dir 下，读到结束记录时返回
+     */
+    public static void read(BufferedSource source, File dir, Listener listener) throws IOException {
+        Path base = dir.toPath().toAbsolutePath().normalize();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (true) {
+            String line = source.readUtf8Line();
+            if (line == null)
+                throw new EOFException();
+            if (END.equals(line))
+                return;
+            String[] parts = line.split(" ", 3);
+            if (ENTRY_DIR.equals(parts[0]) && parts.length == 2) {
+                Files.createDirectories(resolve(base, parts[1]));
+            } else if (ENTRY_FILE.equals(parts[0]) && parts.length == 3) {
+                long remainSize = Long.parseLong(parts[1]);
+                Path path = resolve(base, parts[2]);
+                Files.createDirectories(path.getParent());
+                try (BufferedSink fileSink = Okio.buffer(Okio.sink(path))) {
+                    while (remainSize > 0) {
+                        int size = source.read(chunk, 0, (int) Math.min(remainSize, chunk.length));
+                        if (size == -1)
+                            throw new EOFException();
+                        fileSink.write(chunk, 0, size);
+                        remainSize -= size;
+                        listener.onTransferred(size);
+                    }
+                }
+            } else {
+                throw new IOException("记录格式错误 " + line);
+            }
+        }
+    }
+
+    /**
+     * 相对路径不能指向 base 之外
+     */
+    private static Path resolve(Path base, String name) throws IOException {
+        Path path = base.resolve(name).normalize();
+        if (!path.startsWith(base) || path.equals(base))
+            throw new IOException("非法路径 " + name);
+        return path;
+    }
+}
@@ -13,22 +13,25 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChatClient {
     private final ChatManager chatManager;
     private final AtomicBoolean isAlive = new AtomicBoolean();
-    private final Map<UUID, BlockingQueue<ChatMessage>> messageQueues = new HashMap<>();
+    private final Map<UUID, WakeableQueue<ChatMessage>> messageQueues = new HashMap<>();
     private final Logger logger = LogManager.getLogger(getClass().getSimpleName());
     private final Map<UUID, Set<MessageSubscriber>> messageSubscribers = new HashMap<>();
-    private final Set<ChatSession> connectedChatSessions = new HashSet<>();
+    // 会话的 equals 和 hashCode 包含状态，关闭后会变化，只能按对象本身查找
+    private final Set<ChatSession> connectedChatSessions = Collections.newSetFromMap(new IdentityHashMap<>());
     private final Set<UUID> connectingUserIds = new HashSet<>();
     private final Set<UUID> sendingMessages = new HashSet<>();
+    private final Map<ChatSession, NioChatConnection> nioConnections = new IdentityHashMap<>();
+    private final Set<UUID> legacyUserIds = new HashSet<>();
 
     public ChatClient(ChatManager chatManager) {
         this.chatManager = chatManager;
@@ -41,6 +44,22 @@ public class ChatClient {
 
     public void stop() {
         isAlive.set(false);
+        List<WakeableQueue<ChatMessage>> queues;
+        synchronized (this) {
+            queues = new ArrayList<>(messageQueues.values());
+        }
+        for (WakeableQueue<ChatMessage> queue : queues) {
+            queue.wakeUp();
+        }
+    }
+
+    /**
+     * 会话关闭后唤醒等待发送的循环
+     */
+    public void wakeUp(UUID userId) {
+        WakeableQueue<ChatMessage> queue = getChatMessageQueue(userId);
+        if (queue != null)
+            queue.wakeUp();
     }
 
     public void connect(OnlineUser onlineUser) {
@@ -53,33 +72,82 @@ public class ChatClient {
             }
             connectingUserIds.add(onlineUser.getUser().getId());
         }
-        new Thread(() -> doConnect(onlineUser)).start();
+        try {
+            chatManager.getExecutor().execute("chat-connect", () -> doConnect(onlineUser));
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                connectingUserIds.remove(onlineUser.getUser().getId());
+            }
+        }
     }
 
     private void doConnect(final OnlineUser onlineUser) {
+        UUID userId = onlineUser.getUser().getId();
+        try {
+            boolean framed = !isLegacyPeer(userId);
+            if (!doConnect(onlineUser, framed) && framed) {
+                // 旧版本不认识带能力的类型行，退回按行传输
+                logger.debug(onlineUser + " 不支持分帧");
+                markLegacyPeer(userId);
+                doConnect(onlineUser, false);
+            }
+        } finally {
+            synchronized (this) {
+                connectingUserIds.remove(userId);
+            }
+        }
+    }
+
+    private synchronized boolean isLegacyPeer(UUID userId) {
+        return legacyUserIds.contains(userId);
+    }
+
+    private synchronized void markLegacyPeer(UUID userId) {
+        legacyUserIds.add(userId);
+    }
+
+    /**
+     * 对方拒绝握手时返回 false
+     */
+    private boolean doConnect(final OnlineUser onlineUser, boolean framed) {
         ChatSession chatSession = null;
         Socket socket = null;
         try {
-            socket = new Socket(onlineUser.getHost(), onlineUser.getPort());
+            if (chatManager.getConfig().isNioEnabled()) {
+                // 握手仍走阻塞 IO，连接建立后交给事件循环
+                socket = SocketChannel.open(new InetSocketAddress(onlineUser.getHost(), onlineUser.getPort())).socket();
+            } else {
+                socket = new Socket(onlineUser.getHost(), onlineUser.getPort());
+            }
             chatSession = new ChatSession(socket, null, null, false);
             chatSession.setContextUserId(onlineUser.getUser().getId());
             chatSession.setUser(onlineUser.getUser());
             chatSession.setRemoteServerPort(onlineUser.getPort());
             chatManager.onSessionCreated(chatSession);
-            Buffer buffer = ObjectHelper.serialize(chatManager.getMyself());
+            // 旧版本只认识 Java 序列化
+            Buffer buffer = framed ? CompactCodec.serialize(chatManager.getMyself()) : ObjectHelper.serialize(chatManager.getMyself());
             String userBase64 = buffer.readByteString().base64();
             buffer.close();
             BufferedSink sink = chatSession.getSink();
-            sink.writeUtf8(ChatSession.NAME + "\n");
+            sink.writeUtf8(ChatSession.NAME + (framed ? " " + ChatSession.CAP_FRAMED + " " + ChatSession.CAP_ARCHIVE : "")
+                    + "\n");
             sink.writeUtf8(chatManager.getMyself().getId().toString() + "\n");
             sink.writeUtf8(userBase64 + "\n");
             sink.writeUtf8(chatManager.getChatServer().getServerSocket().getLocalPort() + "\n");
             sink.flush();
             BufferedSource source = chatSession.getSource();
             String status = source.readUtf8Line();
-            if (!"OK".equals(status)) {
+            if ("ERR".equals(status)) {
+                chatManager.notifySessionClosed(chatSession);
+                Utils.closeQuietly(socket);
+                return false;
+            }
+            if (status == null || !(status.equals("OK") || status.startsWith("OK "))) {
                 throw new IllegalStateException("状态码为 " + status);
             }
+            List<String> capabilities = Arrays.asList(status.split(" "));
+            chatSession.setFramed(framed && capabilities.contains(ChatSession.CAP_FRAMED));
+            chatSession.setArchivable(chatSession.isFramed() && capabilities.contains(ChatSession.CAP_ARCHIVE));
             chatSession.setState(Session.State.CONNECTED);
             chatManager.onSessionConnected(chatSession);
             logger.debug("已连接 " + chatSession);
@@ -89,11 +157,8 @@ public class ChatClient {
                 chatManager.notifySessionClosed(chatSession);
             }
             Utils.closeQuietly(socket);
-        } finally {
-            synchronized (this) {
-                connectingUserIds.remove(onlineUser.getUser().getId());
-            }
         }
+        return true;
     }
 
     public synchronized void subscribe(UUID userId, MessageSubscriber subscriber) {
@@ -109,34 +174,66 @@ public class ChatClient {
         messageSubscribers.get(userId).remove(subscriber);
     }
 
-    public synchronized void onChatSessionConnected(ChatSession chatSession) {
-        if (connectedChatSessions.contains(chatSession))
+    public void onChatSessionConnected(ChatSession chatSession) {
+        // 不能在持有本对象锁时访问 chatManager，避免和监听回调互相等待
+        EventLoopGroup group = chatManager.getChatServer().getEventLoopGroup();
+        SocketChannel channel = chatSession.getSocket().getChannel();
+        NioChatConnection connection = null;
+        synchronized (this) {
+            if (connectedChatSessions.contains(chatSession))
+                return;
+            connectedChatSessions.add(chatSession);
+            messageQueues.putIfAbsent(chatSession.getContextUserId(), new WakeableQueue<>());
+            if (group != null && channel != null) {
+                connection = new NioChatConnection(group.loopOf(channel), channel, chatManager, chatSession);
+                nioConnections.put(chatSession, connection);
+            }
+        }
+        if (connection != null) {
+            connection.start();
             return;
-        connectedChatSessions.add(chatSession);
-        messageQueues.putIfAbsent(chatSession.getContextUserId(), new LinkedBlockingQueue<>());
-        new Thread(() -> sendLoop(chatSession)).start();
-        new Thread(() -> receiveLoop(chatSession)).start();
+        }
+        TaskExecutor executor = chatManager.getExecutor();
+        try {
+            executor.execute("chat-send-" + chatSession.getContextUserId(), () -> sendLoop(chatSession));
+            executor.execute("chat-receive-" + chatSession.getContextUserId(), () -> receiveLoop(chatSession));
+        } catch (RejectedExecutionException e) {
+            chatManager.notifySessionClosed(chatSession);
+        }
     }
 
-    private synchronized BlockingQueue<ChatMessage> getChatMessageQueue(UUID userId) {
+    synchronized WakeableQueue<ChatMessage> getChatMessageQueue(UUID userId) {
         return messageQueues.get(userId);
     }
 
     public synchronized void onChatSessionRemoved(ChatSession chatSession) {
-        BlockingQueue<ChatMessage> queue = getChatMessageQueue(chatSession.getContextUserId());
+        WakeableQueue<ChatMessage> queue = getChatMessageQueue(chatSession.getContextUserId());
         if (queue != null) {
             queue.clear();
         }
         connectedChatSessions.remove(chatSession);
+        NioChatConnection connection = nioConnections.remove(chatSession);
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    private synchronized List<NioChatConnection> getNioConnections(UUID userId) {
+        List<NioChatConnection> connections = new ArrayList<>();
+        for (Map.Entry<ChatSession, NioChatConnection> entry : nioConnections.entrySet()) {
+            if (entry.getKey().getContextUserId().equals(userId))
+                connections.add(entry.getValue());
+        }
+        return connections;
     }
 
     public void sendMessage(UUID userId, ChatMessage message) {
-        BlockingQueue<ChatMessage> queue;
+        WakeableQueue<ChatMessage> queue;
         message.setSender(chatManager.getMyself());
         message.setContextUserId(userId);
         boolean exist;
         synchronized (this) {
-            messageQueues.putIfAbsent(userId, new LinkedBlockingQueue<>());
+            messageQueues.putIfAbsent(userId, new WakeableQueue<>());
             queue = messageQueues.get(userId);
             exist = sendingMessages.contains(message.getId());
             if (!exist) {
@@ -149,9 +246,9 @@ public class ChatClient {
         } else {
             updateMessage(userId, message);
         }
-        try {
-            queue.put(message);
-        } catch (InterruptedException ignored) {
+        queue.put(message);
+        for (NioChatConnection connection : getNioConnections(userId)) {
+            connection.requestSend();
         }
     }
 
@@ -197,33 +294,50 @@ public class ChatClient {
     }
 
     private void sendLoop(final ChatSession session) {
-        final BlockingQueue<ChatMessage> queue;
+        final WakeableQueue<ChatMessage> queue;
         synchronized (this) {
             queue = messageQueues.get(session.getContextUserId());
         }
+        ChatConfig config = chatManager.getConfig();
+        int maxBatchMessages = config.getMaxBatchMessages();
+        long maxBatchBytes = config.getMaxBatchBytes();
         BufferedSink sink = session.getSink();
         logger.debug("发信循环 " + session.getContextUserId());
         while (isAlive.get() && session.isAlive()) {
             try {
-                ChatMessage message = queue.poll(500, TimeUnit.MILLISECONDS);
-                if (message == null) continue;
-                Buffer buffer = ObjectHelper.serialize(message);
-                String base64 = buffer.readByteString().base64();
-                buffer.close();
+                ChatMessage message = queue.take(() -> isAlive.get() && session.isAlive());
+                if (message == null) break;
+                // 把已在队列中的消息一起编码，只 flush 一次
+                List<ChatMessage> batch = new ArrayList<>();
+                Buffer buffer = new Buffer();
+                while (message != null) {
+                    try {
+                        writeMessage(session, encodeMessage(session, message), buffer);
+                        batch.add(message);
+                    } catch (IOException e) {
+                        logger.warn("编码失败 " + message, e);
+                        onMessageFailed(session, message);
+                    }
+                    if (batch.size() >= maxBatchMessages || buffer.size() >= maxBatchBytes) break;
+                    message = queue.poll();
+                }
+                if (batch.isEmpty()) continue;
                 session.setBusy(true);
-                logger.debug("发送 " + message + " -> " + session.getContextUserId());
+                logger.debug("发送 " + batch.size() + " 条消息 -> " + session.getContextUserId());
                 try {
-                    sink.writeUtf8(base64 + "\n");
+                    sink.write(buffer, buffer.size());
                     sink.flush();
                     logger.debug("发送成功!");
                     session.setUpdateTime(new Date());
                     session.setBusy(false);
-                    message.setState(ChatMessage.State.OK);
-                    updateMessage(session.getContextUserId(), message);
+                    for (ChatMessage sent : batch) {
+                        onMessageSent(session, sent);
+                    }
                 } catch (Exception e) {
                     session.setBusy(false);
-                    message.setState(ChatMessage.State.FAILED);
-                    updateMessage(session.getContextUserId(), message);
+                    for (ChatMessage failed : batch) {
+                        onMessageFailed(session, failed);
+                    }
                     if (e instanceof IOException) {
                         if (session.getState() != Session.State.CLOSED) {
                             logger.debug("发信失败，已断开");
@@ -237,12 +351,62 @@ public class ChatClient {
         }
     }
 
+    /**
+     * 分帧会话的对端一定是新版本，可以使用紧凑编码
+     */
+    Buffer encodeMessage(ChatSession session, ChatMessage message) throws IOException {
+        return session.isFramed() ? CompactCodec.serialize(message) : ObjectHelper.serialize(message);
+    }
+
+    /**
+     * 分帧会话直接写入序列化结果，旧版本会话写 base64 文本行
+     */
+    void writeMessage(ChatSession session, Buffer payload, BufferedSink sink) throws IOException {
+        if (session.isFramed()) {
+            FrameCodec.write(sink, FrameCodec.TYPE_MESSAGE, payload);
+        } else {
+            sink.writeUtf8(payload.readByteString().base64());
+            sink.writeByte('\n');
+        }
+    }
+
+    void onMessageSent(ChatSession session, ChatMessage message) {
+        message.setState(ChatMessage.State.OK);
+        updateMessage(session.getContextUserId(), message);
+    }
+
+    void onMessageFailed(ChatSession session, ChatMessage message) {
+        message.setState(ChatMessage.State.FAILED);
+        updateMessage(session.getContextUserId(), message);
+    }
+
+    void onLineReceived(ChatSession session, String line) throws IOException, ClassNotFoundException {
+        onMessageReceived(session, (ChatMessage) CompactCodec.deserialize(ByteString.decodeBase64(line)));
+    }
+
+    void onFrameReceived(ChatSession session, FrameCodec.Frame frame) throws IOException, ClassNotFoundException {
+        if (frame.getType() == FrameCodec.TYPE_MESSAGE) {
+            onMessageReceived(session, (ChatMessage) CompactCodec.deserialize(frame.getPayload()));
+        } else {
+            logger.debug("忽略未知帧 " + frame.getType());
+        }
+    }
+
+    private void onMessageReceived(ChatSession session, ChatMessage chatMessage) {
+        chatMessage.setContextUserId(session.getContextUserId());
+        chatMessage.setSender(session.getUser().copy());
+        chatMessage.setState(ChatMessage.State.OK);
+        chatMessage.setMine(false);
+        onChatMessageReceived(session, chatMessage);
+        session.setUpdateTime(new Date());
+    }
+
     private void onChatMessageReceived(ChatSession session, ChatMessage message) {
         logger.debug("收信 " + session.getContextUserId() + " -> " + message);
         addChatMessage(session.getContextUserId(), message);
         if (message.getFile() != null) {
             ChatMessage.FileResource resource = message.getFile();
-            chatManager.getFileManager().download(session.getContextUserId(), resource.getResId(), resource.getFileName());
+            chatManager.getFileManager().download(session.getContextUserId(), resource);
         }
     }
 
@@ -251,19 +415,22 @@ public class ChatClient {
         BufferedSource source = session.getSource();
         while (isAlive.get() && session.isAlive()) {
             try {
+                if (session.isFramed()) {
+                    if (source.exhausted()) {
+                        // EOF，正常断开
+                        chatManager.notifySessionClosed(session);
+                        break;
+                    }
+                    onFrameReceived(session, FrameCodec.read(source));
+                    continue;
+                }
                 String line = source.readUtf8Line();
                 if (line == null) {
                     // EOF，正常断开
                     chatManager.notifySessionClosed(session);
                     break;
                 }
-                ChatMessage chatMessage = (ChatMessage) ObjectHelper.deserialize(ByteString.decodeBase64(line));
-                chatMessage.setContextUserId(session.getContextUserId());
-                chatMessage.setSender(session.getUser().copy());
-                chatMessage.setState(ChatMessage.State.OK);
-                chatMessage.setMine(false);
-                onChatMessageReceived(session, chatMessage);
-                session.setUpdateTime(new Date());
+                onLineReceived(session, line);
             } catch (IOException e) {
                 if (session.getState() != Session.State.CLOSED) {
                     e.printStackTrace();
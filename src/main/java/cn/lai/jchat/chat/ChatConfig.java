@@ -0,0 +1,234 @@
+package cn.lai.jchat.chat;
+
+import cn.lai.jchat.Constants;
+
+/**
+ * 聊天管理器的运行参数，需在 {@link ChatManager#start()} 之前设置
+ */
+public class ChatConfig {
+    private boolean nioEnabled = false;
+    private int eventLoopSize = 1;
+    private boolean compactBeaconEnabled = false;
+    private boolean virtualThreadsEnabled = true;
+    private int maxPlatformThreads = 512;
+    private int maxBatchMessages = 64;
+    private long maxBatchBytes = 256 * 1024;
+    private long chatIdleTimeout = 10 * 60 * 1000L;
+    private long fileIdleTimeout = 2 * 60 * 1000L;
+    private long segmentThreshold = 16 * 1024 * 1024L;
+    private long segmentSize = 4 * 1024 * 1024L;
+    private int maxSegmentStreams = 4;
+    private int minDownloadWorkers = 2;
+    private int maxDownloadWorkers = 8;
+    private int maxDownloadsPerPeer = 4;
+    private long uploadRateLimit = 0;
+    private long downloadRateLimit = 0;
+    private long peerRateLimit = 0;
+    private String fileIndexPath = Constants.FILE_INDEX_PATH;
+
+    public synchronized boolean isNioEnabled() {
+        return nioEnabled;
+    }
+
+    /**
+     * 开启后由少量 Selector 线程负责所有聊天和文件套接字，不再为每个连接创建线程
+     */
+    public synchronized void setNioEnabled(boolean nioEnabled) {
+        this.nioEnabled = nioEnabled;
+    }
+
+    public synchronized int getEventLoopSize() {
+        return eventLoopSize;
+    }
+
+    public synchronized void setEventLoopSize(int eventLoopSize) {
+        this.eventLoopSize = Math.max(1, eventLoopSize);
+    }
+
+    public synchronized boolean isCompactBeaconEnabled() {
+        return compactBeaconEnabled;
+    }
+
+    /**
+     * 广播的用户信息改用紧凑编码，旧版本无法识别，局域网内都升级后再开启
+     */
+    public synchronized void setCompactBeaconEnabled(boolean compactBeaconEnabled) {
+        this.compactBeaconEnabled = compactBeaconEnabled;
+    }
+
+    public synchronized boolean isVirtualThreadsEnabled() {
+        return virtualThreadsEnabled;
+    }
+
+    /**
+     * 运行在 JDK 21 及以上时，会话和文件任务使用虚拟线程
+     */
+    public synchronized void setVirtualThreadsEnabled(boolean virtualThreadsEnabled) {
+        this.virtualThreadsEnabled = virtualThreadsEnabled;
+    }
+
+    public synchronized int getMaxPlatformThreads() {
+        return maxPlatformThreads;
+    }
+
+    /**
+     * 不使用虚拟线程时平台线程的上限，超出后新的会话会被拒绝
+     */
+    public synchronized void setMaxPlatformThreads(int maxPlatformThreads) {
+        this.maxPlatformThreads = Math.max(1, maxPlatformThreads);
+    }
+
+    public synchronized int getMaxBatchMessages() {
+        return maxBatchMessages;
+    }
+
+    /**
+     * 发信循环一次最多合并发送的消息数，限制排在批次末尾的消息的延迟
+     */
+    public synchronized void setMaxBatchMessages(int maxBatchMessages) {
+        this.maxBatchMessages = Math.max(1, maxBatchMessages);
+    }
+
+    public synchronized long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * 批次编码后超过该大小即发送，不再继续合并
+     */
+    public synchronized void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+    }
+
+    public synchronized long getChatIdleTimeout() {
+        return chatIdleTimeout;
+    }
+
+    /**
+     * 聊天会话空闲超过该时长（毫秒）后关闭
+     */
+    public synchronized void setChatIdleTimeout(long chatIdleTimeout) {
+        this.chatIdleTimeout = Math.max(1, chatIdleTimeout);
+    }
+
+    public synchronized long getFileIdleTimeout() {
+        return fileIdleTimeout;
+    }
+
+    /**
+     * 文件会话空闲超过该时长（毫秒）后关闭，需要时会重新建立
+     */
+    public synchronized void setFileIdleTimeout(long fileIdleTimeout) {
+        this.fileIdleTimeout = Math.max(1, fileIdleTimeout);
+    }
+
+    public synchronized long getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    /**
+     * 不小于该大小（字节）的文件分块并发下载，对方不支持断点续传时不分块
+     */
+    public synchronized void setSegmentThreshold(long segmentThreshold) {
+        this.segmentThreshold = segmentThreshold;
+    }
+
+    public synchronized long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * 分块下载时每块的大小（字节）
+     */
+    public synchronized void setSegmentSize(long segmentSize) {
+        this.segmentSize = Math.max(1, segmentSize);
+    }
+
+    public synchronized int getMaxSegmentStreams() {
+        return maxSegmentStreams;
+    }
+
+    /**
+     * 单个文件分块下载时最多同时使用的连接数，实际连接数随吞吐变化逐个增加
+     */
+    public synchronized void setMaxSegmentStreams(int maxSegmentStreams) {
+        this.maxSegmentStreams = Math.max(1, maxSegmentStreams);
+    }
+
+    public synchronized int getMinDownloadWorkers() {
+        return minDownloadWorkers;
+    }
+
+    /**
+     * 下载线程的初始和最少数量
+     */
+    public synchronized void setMinDownloadWorkers(int minDownloadWorkers) {
+        this.minDownloadWorkers = Math.max(1, minDownloadWorkers);
+    }
+
+    public synchronized int getMaxDownloadWorkers() {
+        return maxDownloadWorkers;
+    }
+
+    /**
+     * 下载线程的最多数量，实际数量随吞吐在最少和最多之间调整
+     */
+    public synchronized void setMaxDownloadWorkers(int maxDownloadWorkers) {
+        this.maxDownloadWorkers = Math.max(1, maxDownloadWorkers);
+    }
+
+    public synchronized int getMaxDownloadsPerPeer() {
+        return maxDownloadsPerPeer;
+    }
+
+    /**
+     * 同时从同一个用户下载的文件数上限
+     */
+    public synchronized void setMaxDownloadsPerPeer(int maxDownloadsPerPeer) {
+        this.maxDownloadsPerPeer = Math.max(1, maxDownloadsPerPeer);
+    }
+
+    public synchronized long getUploadRateLimit() {
+        return uploadRateLimit;
+    }
+
+    /**
+     * 文件发送的总速率上限，每秒字节数，0 表示不限速。聊天消息不受限制
+     */
+    public synchronized void setUploadRateLimit(long uploadRateLimit) {
+        this.uploadRateLimit = Math.max(0, uploadRateLimit);
+    }
+
+    public synchronized long getDownloadRateLimit() {
+        return downloadRateLimit;
+    }
+
+    /**
+     * 文件接收的总速率上限，每秒字节数，0 表示不限速
+     */
+    public synchronized void setDownloadRateLimit(long downloadRateLimit) {
+        this.downloadRateLimit = Math.max(0, downloadRateLimit);
+    }
+
+    public synchronized long getPeerRateLimit() {
+        return peerRateLimit;
+    }
+
+    /**
+     * 与每个用户之间发送和接收各自的速率上限，0 表示不限速
+     */
+    public synchronized void setPeerRateLimit(long peerRateLimit) {
+        this.peerRateLimit = Math.max(0, peerRateLimit);
+    }
+
+    public synchronized String getFileIndexPath() {
+        return fileIndexPath;
+    }
+
+    /**
+     * 分享和已下载文件的索引位置，为 null 时重启后不再保留
+     */
+    public synchronized void setFileIndexPath(String fileIndexPath) {
+        this.fileIndexPath = fileIndexPath;
+    }
+}
@@ -7,6 +7,10 @@ import cn.lai.jchat.model.User;
 public interface ChatManager {
     User getMyself();
 
+    ChatConfig getConfig();
+
+    TaskExecutor getExecutor();
+
     SessionManager getSessionManager();
 
     ChatClient getChatClient();
@@ -12,6 +12,9 @@ public class ChatManagerImpl implements ChatManager {
     private SessionManager sessionManager;
     private ChatClient chatClient;
     private final ChatMessageStore chatMessageStore = new ChatMessageStore();
+    private final ChatConfig config = new ChatConfig();
+    // 各组件在持有自身锁时也会取用，不加锁
+    private volatile TaskExecutor executor;
     private FileManager fileManager;
     private boolean isAlive = false;
     private ChatListener chatListener;
@@ -35,6 +38,7 @@ public class ChatManagerImpl implements ChatManager {
     public synchronized void start() {
         if (isAlive) return;
         isAlive = true;
+        executor = TaskExecutor.create(config);
         onlineUserManager = new OnlineUserManager(this);
         chatServer = new ChatServer(this);
         sessionManager = new SessionManager(this);
@@ -57,6 +61,17 @@ public class ChatManagerImpl implements ChatManager {
         sessionManager.stop();
         chatClient.stop();
         fileManager.stop();
+        executor.shutdown();
+    }
+
+    @Override
+    public ChatConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public TaskExecutor getExecutor() {
+        return executor;
     }
 
     @Override
@@ -13,15 +13,21 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Objects;
-import java.util.UUID;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChatServer {
+    private static final long MAX_HANDSHAKE_SIZE = 1024 * 1024;
     private final AtomicBoolean isAlive = new AtomicBoolean();
     private ServerSocket serverSocket;
+    private EventLoopGroup eventLoopGroup;
     private final ChatManager chatManager;
     private final Logger logger = LogManager.getLogger(getClass().getSimpleName());
 
@@ -33,20 +39,35 @@ public class ChatServer {
         return serverSocket;
     }
 
+    /**
+     * 非 NIO 模式下为 null
+     */
+    public synchronized EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
     public void start() {
         if (isAlive.get())
             return;
         isAlive.set(true);
-        new Thread(this::listenLoop).start();
+        if (chatManager.getConfig().isNioEnabled()) {
+            startNio();
+        } else {
+            new Thread(this::listenLoop).start();
+        }
     }
 
     public void stop() {
         isAlive.set(false);
         Utils.closeQuietly(getServerSocket());
+        EventLoopGroup group = getEventLoopGroup();
+        if (group != null)
+            group.stop();
     }
 
     private ServerSocket createServerSocket() {
         try {
+            // 阻塞模式不用通道创建，通道适配的输入输出流共用一把锁，阻塞的读取会卡住写入
             ServerSocket socket = new ServerSocket(0);
             synchronized (this) {
                 return serverSocket = socket;
@@ -83,28 +104,70 @@ public class ChatServer {
         Utils.closeQuietly(serverSocket);
     }
 
+    private void startNio() {
+        try {
+            EventLoopGroup group = new EventLoopGroup(chatManager.getConfig().getEventLoopSize());
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(0));
+            synchronized (this) {
+                eventLoopGroup = group;
+                serverSocket = channel.socket();
+            }
+            group.start();
+            EventLoop acceptLoop = group.next();
+            acceptLoop.execute(() -> {
+                try {
+                    acceptLoop.register(channel, SelectionKey.OP_ACCEPT, new EventLoop.Handler() {
+                        @Override
+                        public void onReady(SelectionKey key) throws IOException {
+                            accept(channel);
+                        }
+
+                        @Override
+                        public void onError(SelectionKey key, Exception e) {
+                            if (channel.isOpen())
+                                logger.warn("接受连接失败", e);
+                        }
+                    });
+                } catch (IOException e) {
+                    logger.warn("注册监听失败", e);
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        logger.debug("正在监听(NIO) " + getServerSocket().getLocalPort());
+        chatManager.onServerCreated();
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            logger.debug("接受 " + channel);
+            final SocketChannel accepted = channel;
+            EventLoop loop = getEventLoopGroup().next();
+            loop.execute(() -> {
+                try {
+                    new Handshake(loop, accepted).register();
+                } catch (IOException e) {
+                    logger.debug("注册连接失败", e);
+                    Utils.closeQuietly(accepted);
+                }
+            });
+        }
+    }
+
     private void initSession(final Socket socket) {
-        new Thread(() -> {
+        Runnable task = () -> {
             BufferedSource source = null;
             BufferedSink sink = null;
             try {
                 source = Okio.buffer(Okio.source(socket));
                 sink = Okio.buffer(Okio.sink(socket));
                 String type = source.readUtf8Line();
-                final Session session;
                 logger.debug("type " + type);
-                if (ChatSession.NAME.equals(type)) {
-                    ChatSession chatSession = new ChatSession(socket, source, sink, true);
-                    initChatSession(chatSession);
-                    session = chatSession;
-                } else if (FileSession.NAME.equals(type)) {
-                    FileSession fileSession = new FileSession(socket, source, sink, false);
-                    initFileSession(fileSession);
-                    session = fileSession;
-                } else {
-                    throw new IllegalStateException("不支持的会话类型");
-                }
-                sink.writeUtf8("OK\n");
+                final Session session = readSession(type, socket, source, sink, source);
+                sink.writeUtf8(getReplyLine(session));
                 sink.flush();
                 chatManager.onSessionCreated(session);
                 session.setState(Session.State.CONNECTED);
@@ -121,23 +184,152 @@ public class ChatServer {
                 }
                 Utils.closeQuietly(socket);
             }
-        }).start();
+        };
+        try {
+            chatManager.getExecutor().execute("session-init", task);
+        } catch (RejectedExecutionException e) {
+            Utils.closeQuietly(socket);
+        }
+    }
+
+    /**
+     * 根据会话类型读取剩余的握手行，header 为握手数据的来源。
+     * 类型行格式为 "类型 能力1 能力2"，旧版本只发送类型
+     */
+    private Session readSession(String typeLine, Socket socket, BufferedSource source, BufferedSink sink,
+                                BufferedSource header) throws IOException, ClassNotFoundException {
+        List<String> parts = typeLine == null ? Collections.emptyList() : Arrays.asList(typeLine.split(" "));
+        String type = parts.isEmpty() ? null : parts.get(0);
+        if (ChatSession.NAME.equals(type)) {
+            ChatSession chatSession = new ChatSession(socket, source, sink, true);
+            initChatSession(chatSession, header);
+            chatSession.setFramed(parts.contains(ChatSession.CAP_FRAMED));
+            chatSession.setArchivable(chatSession.isFramed() && parts.contains(ChatSession.CAP_ARCHIVE));
+            return chatSession;
+        } else if (FileSession.NAME.equals(type)) {
+            FileSession fileSession = new FileSession(socket, source, sink, false);
+            initFileSession(fileSession, header);
+            fileSession.setRanged(parts.contains(FileSession.CAP_RANGE));
+            // 重新获取损坏的块需要断点续传
+            fileSession.setVerifiable(fileSession.isRanged() && parts.contains(FileSession.CAP_DIGEST));
+            fileSession.setPipelined(fileSession.isRanged() && parts.contains(FileSession.CAP_PIPELINE));
+            fileSession.setArchivable(fileSession.isRanged() && parts.contains(FileSession.CAP_ARCHIVE));
+            fileSession.setSwarmable(fileSession.isRanged() && parts.contains(FileSession.CAP_SWARM));
+            fileSession.setCompressible(fileSession.isRanged() && parts.contains(FileSession.CAP_DEFLATE));
+            fileSession.setControllable(fileSession.isRanged() && parts.contains(FileSession.CAP_CONTROL));
+            return fileSession;
+        }
+        throw new IllegalStateException("不支持的会话类型");
+    }
+
+    /**
+     * 包含类型行在内的握手行数
+     */
+    private static int getHeaderLines(String typeLine) {
+        String type = typeLine.split(" ")[0];
+        if (ChatSession.NAME.equals(type)) return 4;
+        if (FileSession.NAME.equals(type)) return 2;
+        return 1;
+    }
+
+    /**
+     * 回复中带上双方都支持的能力，只有发送了能力的新版本客户端才会收到
+     */
+    private static String getReplyLine(Session session) {
+        if (session instanceof ChatSession && ((ChatSession) session).isFramed())
+            return "OK " + ChatSession.CAP_FRAMED
+                    + (((ChatSession) session).isArchivable() ? " " + ChatSession.CAP_ARCHIVE : "") + "\n";
+        if (session instanceof FileSession && ((FileSession) session).isRanged()) {
+            FileSession fileSession = (FileSession) session;
+            return "OK " + FileSession.CAP_RANGE
+                    + (fileSession.isVerifiable() ? " " + FileSession.CAP_DIGEST : "")
+                    + (fileSession.isPipelined() ? " " + FileSession.CAP_PIPELINE : "")
+                    + (fileSession.isArchivable() ? " " + FileSession.CAP_ARCHIVE : "")
+                    + (fileSession.isSwarmable() ? " " + FileSession.CAP_SWARM : "")
+                    + (fileSession.isCompressible() ? " " + FileSession.CAP_DEFLATE : "")
+                    + (fileSession.isControllable() ? " " + FileSession.CAP_CONTROL : "") + "\n";
+        }
+        return "OK\n";
     }
-    private void initChatSession(ChatSession session) throws IOException, ClassNotFoundException {
-        initCommonSession(session);
-        String userInfo = Objects.requireNonNull(session.getSource().readUtf8Line());
-        User user = (User) ObjectHelper.deserialize(ByteString.decodeBase64(userInfo));
-        int remoteServerPort = Integer.parseInt(Objects.requireNonNull(session.getSource().readUtf8Line()));
+
+    private void initChatSession(ChatSession session, BufferedSource header) throws IOException, ClassNotFoundException {
+        initCommonSession(session, header);
+        String userInfo = Objects.requireNonNull(header.readUtf8Line());
+        User user = (User) CompactCodec.deserialize(ByteString.decodeBase64(userInfo));
+        int remoteServerPort = Integer.parseInt(Objects.requireNonNull(header.readUtf8Line()));
         session.setUser(user);
         session.setRemoteServerPort(remoteServerPort);
     }
 
-    private void initFileSession(FileSession session) throws IOException {
-        initCommonSession(session);
+    private void initFileSession(FileSession session, BufferedSource header) throws IOException {
+        initCommonSession(session, header);
     }
 
-    private void initCommonSession(Session session) throws IOException {
-        String uuid = Objects.requireNonNull(session.getSource().readUtf8Line());
+    private void initCommonSession(Session session, BufferedSource header) throws IOException {
+        String uuid = Objects.requireNonNull(header.readUtf8Line());
         session.setContextUserId(UUID.fromString(uuid));
     }
+
+    /**
+     * NIO 模式下的握手，数据到齐后才解析，完成后把通道交给对应的会话处理
+     */
+    private class Handshake extends NioConnection {
+        private Session session;
+
+        Handshake(EventLoop loop, SocketChannel channel) {
+            super(loop, channel);
+        }
+
+        @Override
+        protected void onInbound() throws IOException {
+            if (session != null) return;
+            if (inbound.size() > MAX_HANDSHAKE_SIZE)
+                throw new IOException("握手数据过长");
+            long end = inbound.indexOf((byte) '\n');
+            if (end == -1) return;
+            String type = inbound.clone().readUtf8Line();
+            int lines = getHeaderLines(type);
+            for (int i = 1; i < lines; i++) {
+                end = inbound.indexOf((byte) '\n', end + 1);
+                if (end == -1) return;
+            }
+            logger.debug("type " + type);
+            inbound.readUtf8Line();
+            try {
+                session = readSession(type, channel.socket(), null, null, inbound);
+            } catch (Exception e) {
+                onError(key, e);
+                return;
+            }
+            outbound.writeUtf8(getReplyLine(session));
+            flush();
+        }
+
+        @Override
+        protected void onFlushed() throws IOException {
+            if (session == null) return;
+            // 交接前停止读取，剩余的数据由会话继续处理
+            key.interestOps(0);
+            session.getSource().getBuffer().writeAll(inbound);
+            chatManager.onSessionCreated(session);
+            session.setState(Session.State.CONNECTED);
+            chatManager.onSessionConnected(session);
+            logger.debug("新会话 " + session);
+        }
+
+        @Override
+        public void onError(SelectionKey key, Exception e) {
+            logger.warn("建立会话失败", e);
+            if (session == null) {
+                outbound.writeUtf8("ERR\n");
+                try {
+                    flush();
+                } catch (Exception ignored) {
+                }
+            } else {
+                chatManager.notifySessionClosed(session);
+            }
+            Utils.closeQuietly(channel);
+        }
+    }
 }
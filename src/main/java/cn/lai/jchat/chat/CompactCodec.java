@@ -0,0 +1,204 @@
+package cn.lai.jchat.chat;
+
+import cn.lai.jchat.model.ChatMessage;
+import cn.lai.jchat.model.OnlineUser;
+import cn.lai.jchat.model.User;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * ChatMessage、User、OnlineUser 的紧凑二进制编码，替代 {@link ObjectHelper} 的 Java 序列化。
+ * <p>
+ * 格式：1 字节魔数 + 1 字节版本 + 1 字节类型 + 字段。UUID 写两个 long，时间写毫秒数，
+ * 字符串写长度 + UTF-8，null 用长度 -1 表示。解码时遇到 Java 序列化的数据会自动交给 {@link ObjectHelper}
+ */
+public class CompactCodec {
+    private static final byte MAGIC = (byte) 0xC7;
+    private static final byte VERSION = 1;
+    private static final int JAVA_MAGIC = 0xACED;
+    private static final byte TAG_CHAT_MESSAGE = 1;
+    private static final byte TAG_USER = 2;
+    private static final byte TAG_ONLINE_USER = 3;
+
+    public static Buffer serialize(Object o) throws IOException {
+        Buffer buffer = new Buffer();
+        write(buffer, o);
+        return buffer;
+    }
+
+    public static void write(BufferedSink sink, Object o) throws IOException {
+        sink.writeByte(MAGIC);
+        sink.writeByte(VERSION);
+        if (o instanceof ChatMessage) {
+            sink.writeByte(TAG_CHAT_MESSAGE);
+            writeChatMessage(sink, (ChatMessage) o);
+        } else if (o instanceof User) {
+            sink.writeByte(TAG_USER);
+            writeUser(sink, (User) o);
+        } else if (o instanceof OnlineUser) {
+            sink.writeByte(TAG_ONLINE_USER);
+            writeOnlineUser(sink, (OnlineUser) o);
+        } else {
+            throw new IllegalArgumentException("不支持的类型 " + (o == null ? null : o.getClass()));
+        }
+    }
+
+    public static Object deserialize(ByteString byteString) throws IOException, ClassNotFoundException {
+        Buffer buffer = new Buffer();
+        buffer.write(byteString);
+        return deserialize(buffer);
+    }
+
+    public static Object deserialize(Buffer buffer) throws IOException, ClassNotFoundException {
+        if (buffer.size() >= 2 && (buffer.getByte(0) & 0xff) == JAVA_MAGIC >>> 8
+                && (buffer.getByte(1) & 0xff) == (JAVA_MAGIC & 0xff)) {
+            // 旧版本对端
+            return ObjectHelper.deserialize(buffer);
+        }
+        return read(buffer);
+    }
+
+    public static Object read(BufferedSource source) throws IOException {
+        if (source.readByte() != MAGIC)
+            throw new IOException("魔数错误");
+        byte version = source.readByte();
+        if (version != VERSION)
+            throw new IOException("不支持的版本 " + version);
+        byte tag = source.readByte();
+        switch (tag) {
+            case TAG_CHAT_MESSAGE:
+                return readChatMessage(source);
+            case TAG_USER:
+                return readUser(source);
+            case TAG_ONLINE_USER:
+                return readOnlineUser(source);
+            default:
+                throw new IOException("未知类型 " + tag);
+        }
+    }
+
+    private static void writeChatMessage(BufferedSink sink, ChatMessage message) throws IOException {
+        writeUuid(sink, message.getId());
+        writeString(sink, message.getText());
+        writeString(sink, message.getThumbnail());
+        sink.writeLong(Double.doubleToLongBits(message.getImageWidth()));
+        sink.writeLong(Double.doubleToLongBits(message.getImageHeight()));
+        writeEnum(sink, message.getType());
+        writeDate(sink, message.getCreateTime());
+        ChatMessage.FileResource file = message.getFile();
+        sink.writeByte(file == null ? 0 : 1);
+        if (file != null) {
+            writeString(sink, file.getFileName());
+            writeEnum(sink, file.getType());
+            sink.writeLong(file.getFileSize());
+            writeUuid(sink, file.getResId());
+        }
+    }
+
+    private static ChatMessage readChatMessage(BufferedSource source) throws IOException {
+        UUID id = readUuid(source);
+        String text = readString(source);
+        String thumbnail = readString(source);
+        double imageWidth = Double.longBitsToDouble(source.readLong());
+        double imageHeight = Double.longBitsToDouble(source.readLong());
+        ChatMessage.Type type = readEnum(source, ChatMessage.Type.values());
+        Date createTime = readDate(source);
+        ChatMessage.FileResource file = null;
+        if (source.readByte() != 0) {
+            String fileName = readString(source);
+            ChatMessage.FileType fileType = readEnum(source, ChatMessage.FileType.values());
+            long fileSize = source.readLong();
+            file = ChatMessage.FileResource.restore(fileName, fileType, fileSize, readUuid(source));
+        }
+        return ChatMessage.restore(id, text, thumbnail, file, type, createTime, imageWidth, imageHeight);
+    }
+
+    private static void writeUser(BufferedSink sink, User user) throws IOException {
+        writeUuid(sink, user.getId());
+        writeString(sink, user.getName());
+        writeString(sink, user.getAvatar());
+    }
+
+    private static User readUser(BufferedSource source) throws IOException {
+        UUID id = readUuid(source);
+        String name = readString(source);
+        return new User(id, name, readString(source));
+    }
+
+    private static void writeOnlineUser(BufferedSink sink, OnlineUser onlineUser) throws IOException {
+        User user = onlineUser.getUser();
+        sink.writeByte(user == null ? 0 : 1);
+        if (user != null)
+            writeUser(sink, user);
+        writeString(sink, onlineUser.getHost());
+        sink.writeInt(onlineUser.getPort());
+        writeDate(sink, onlineUser.getLastActiveTime());
+    }
+
+    private static OnlineUser readOnlineUser(BufferedSource source) throws IOException {
+        User user = source.readByte() != 0 ? readUser(source) : null;
+        String host = readString(source);
+        int port = source.readInt();
+        return new OnlineUser(user, host, port, readDate(source));
+    }
+
+    private static void writeUuid(BufferedSink sink, UUID uuid) throws IOException {
+        sink.writeByte(uuid == null ? 0 : 1);
+        if (uuid == null) return;
+        sink.writeLong(uuid.getMostSignificantBits());
+        sink.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(BufferedSource source) throws IOException {
+        if (source.readByte() == 0) return null;
+        long most = source.readLong();
+        return new UUID(most, source.readLong());
+    }
+
+    private static void writeString(BufferedSink sink, String s) throws IOException {
+        if (s == null) {
+            sink.writeInt(-1);
+            return;
+        }
+        ByteString bytes = ByteString.encodeUtf8(s);
+        sink.writeInt(bytes.size());
+        sink.write(bytes);
+    }
+
+    private static String readString(BufferedSource source) throws IOException {
+        int size = source.readInt();
+        if (size == -1) return null;
+        if (size < 0)
+            throw new IOException("字符串长度错误 " + size);
+        return source.readUtf8(size);
+    }
+
+    private static void writeDate(BufferedSink sink, Date date) throws IOException {
+        sink.writeByte(date == null ? 0 : 1);
+        if (date != null)
+            sink.writeLong(date.getTime());
+    }
+
+    private static Date readDate(BufferedSource source) throws IOException {
+        if (source.readByte() == 0) return null;
+        return new Date(source.readLong());
+    }
+
+    private static void writeEnum(BufferedSink sink, Enum<?> e) throws IOException {
+        sink.writeByte(e == null ? -1 : e.ordinal());
+    }
+
+    private static <T extends Enum<T>> T readEnum(BufferedSource source, T[] values) throws IOException {
+        byte ordinal = source.readByte();
+        if (ordinal == -1) return null;
+        if (ordinal < 0 || ordinal >= values.length)
+            throw new IOException("枚举值错误 " + ordinal);
+        return values[ordinal];
+    }
+}
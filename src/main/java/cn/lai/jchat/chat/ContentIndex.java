@@ -0,0 +1,49 @@
+package cn.lai.jchat.chat;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 内容摘要到本地文件的索引，包括自己分享的和下载完成的文件。下载前先按摘要查找，已有相同内容时直接使用本地文件
+ */
+public class ContentIndex {
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private static class Entry {
+        final File file;
+        final long length;
+        final long lastModified;
+
+        Entry(File file) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        boolean isValid() {
+            return file.isFile() && file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    public synchronized void put(String contentHash, File file) {
+        entries.put(contentHash, new Entry(file.getAbsoluteFile()));
+    }
+
+    /**
+     * 文件已被删除或修改过时移除并返回 null
+     */
+    public synchronized File find(String contentHash) {
+        Entry entry = entries.get(contentHash);
+        if (entry == null) return null;
+        if (!entry.isValid()) {
+            entries.remove(contentHash);
+            return null;
+        }
+        return entry.file;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,171 @@
+package cn.lai.jchat.chat;
+
+import cn.lai.jchat.Constants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 下载目录中已占用的文件名，分配新文件名时不必逐个检查文件是否存在。只在第一次使用时读取目录，
+ * 之后由目录监视保持同步。分配出去的名称即使文件还没创建也不会再分配给别的下载
+ */
+public class DownloadNameIndex {
+    // 重名时加在名称后的序号，如 a(2).png
+    private static final Pattern INDEXED_NAME = Pattern.compile("(.*)\\((\\d{1,9})\\)");
+    private final File dir;
+    // 小写的文件名，忽略大小写是因为有的文件系统不区分
+    private final Set<String> names = new HashSet<>();
+    // 去掉序号后的文件名到下一个可用序号
+    private final Map<String, Integer> nextIndexes = new HashMap<>();
+    private boolean isLoaded = false;
+    private WatchService watchService;
+    private final Logger logger = LogManager.getLogger(getClass().getSimpleName());
+
+    public DownloadNameIndex(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * 分配一个未被占用的文件名，重名时依次加上序号
+     */
+    public synchronized File reserve(String fileName) {
+        load();
+        int dotIndex = fileName.lastIndexOf('.');
+        String name = dotIndex == -1 ? fileName : fileName.substring(0, dotIndex);
+        String ext = dotIndex == -1 ? "" : fileName.substring(dotIndex);
+        // 原名被删除后可以再用
+        if (names.add(fileName.toLowerCase(Locale.ROOT)))
+            return new File(dir, fileName);
+        String key = fileName.toLowerCase(Locale.ROOT);
+        int index = nextIndexes.getOrDefault(key, 1);
+        while (true) {
+            String candidate = name + "(" + index + ")" + ext;
+            index++;
+            if (names.add(candidate.toLowerCase(Locale.ROOT))) {
+                nextIndexes.put(key, index);
+                return new File(dir, candidate);
+            }
+        }
+    }
+
+    /**
+     * 读取目录，重复调用不会再读
+     */
+    public synchronized void load() {
+        if (!isLoaded)
+            scan();
+    }
+
+    /**
+     * 把目录中的文件都记为已占用，已分配但还没创建的名称不受影响
+     */
+    private synchronized void scan() {
+        isLoaded = true;
+        dir.mkdirs();
+        String[] list = dir.list();
+        if (list == null) return;
+        for (String name : list) {
+            add(name);
+        }
+        logger.debug("下载目录已有 " + list.length + " 项");
+    }
+
+    private void add(String fileName) {
+        fileName = stripPartSuffix(fileName).toLowerCase(Locale.ROOT);
+        names.add(fileName);
+        int dotIndex = fileName.lastIndexOf('.');
+        String name = dotIndex == -1 ? fileName : fileName.substring(0, dotIndex);
+        String ext = dotIndex == -1 ? "" : fileName.substring(dotIndex);
+        Matcher matcher = INDEXED_NAME.matcher(name);
+        if (matcher.matches())
+            nextIndexes.merge(matcher.group(1) + ext, Integer.parseInt(matcher.group(2)) + 1, Math::max);
+    }
+
+    /**
+     * 放弃分配给 file 的名称，文件或临时文件仍在时不释放
+     */
+    public void release(File file) {
+        remove(file.getName());
+    }
+
+    private synchronized void remove(String fileName) {
+        fileName = stripPartSuffix(fileName);
+        // 下载完成改名时临时文件的删除事件先到，这时文件已经在了
+        if (new File(dir, fileName).exists() || new File(dir, fileName + Constants.PART_SUFFIX).exists())
+            return;
+        names.remove(fileName.toLowerCase(Locale.ROOT));
+    }
+
+    private static String stripPartSuffix(String fileName) {
+        if (fileName.endsWith(Constants.PART_SUFFIX) && fileName.length() > Constants.PART_SUFFIX.length())
+            return fileName.substring(0, fileName.length() - Constants.PART_SUFFIX.length());
+        return fileName;
+    }
+
+    /**
+     * 监视下载目录中其他程序创建和删除的文件，在调用线程上运行直到 {@link #close()}
+     */
+    public void watch() {
+        WatchService service;
+        synchronized (this) {
+            if (watchService != null) return;
+            try {
+                dir.mkdirs();
+                service = FileSystems.getDefault().newWatchService();
+                dir.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+            } catch (IOException e) {
+                logger.warn("无法监视下载目录 " + dir, e);
+                return;
+            }
+            watchService = service;
+        }
+        // 开始监视后再读一次，之前创建的文件也不会漏掉
+        scan();
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scan();
+                        continue;
+                    }
+                    String name = event.context().toString();
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        synchronized (this) {
+                            add(name);
+                        }
+                    } else {
+                        remove(name);
+                    }
+                }
+                if (!key.reset()) {
+                    logger.warn("下载目录已不可用 " + dir);
+                    break;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        } finally {
+            synchronized (this) {
+                if (watchService == service)
+                    watchService = null;
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (watchService == null) return;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.debug("关闭目录监视失败", e);
+        }
+        watchService = null;
+    }
+}
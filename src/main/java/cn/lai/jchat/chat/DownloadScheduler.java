@@ -0,0 +1,202 @@
+package cn.lai.jchat.chat;
+
+import cn.lai.jchat.model.ChatMessage;
+import cn.lai.jchat.model.FileTask;
+
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * 下载任务的优先级队列，替代先进先出的队列。界面上正在显示的图片最先，其次是图片和小文件，
+ * 大文件按大小排在后面。等待越久优先级越高，大文件也不会一直排不上
+ */
+public class DownloadScheduler {
+    public static final long SMALL_FILE_SIZE = 4 * 1024 * 1024;
+    // 每等待这么久提升一级
+    private static final long AGING_INTERVAL = 10_000;
+    private static final int LEVEL_VISIBLE = 0;
+    private static final int LEVEL_IMAGE = 1;
+    private static final int LEVEL_SMALL = 2;
+    private static final int LEVEL_UNKNOWN = 3;
+    private static final int LEVEL_LARGE = 4;
+    private static final int MAX_LEVEL = 12;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Set<FileTask.Key> visibleKeys = new HashSet<>();
+    // 每个用户正在下载的任务数
+    private final Map<UUID, Integer> activePeers = new HashMap<>();
+    private int maxPerPeer = Integer.MAX_VALUE;
+    // 已决定让出但还没被取走的高优先级任务数
+    private int pendingYields = 0;
+    // 已取出的任务最初的入队时间
+    private final Map<FileTask, Long> takenTimes = new IdentityHashMap<>();
+    // 已决定让出、等待重新入队的任务
+    private final Set<FileTask> yieldedTasks = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private static class Entry {
+        final FileTask task;
+        final long enqueueTime;
+        // 让出后重新入队的任务，取走它不算满足了让出
+        final boolean isYielded;
+
+        Entry(FileTask task, long enqueueTime, boolean isYielded) {
+            this.task = task;
+            this.enqueueTime = enqueueTime;
+            this.isYielded = isYielded;
+        }
+    }
+
+    /**
+     * 加入队列。让出连接后重新加入的任务保留原来的入队时间，等待的时长不清零
+     */
+    public synchronized void put(FileTask task) {
+        long now = System.currentTimeMillis();
+        boolean yielded = yieldedTasks.remove(task);
+        Long enqueueTime = yielded ? takenTimes.get(task) : null;
+        entries.add(new Entry(task, enqueueTime != null ? enqueueTime : now, yielded));
+        notifyAll();
+    }
+
+    /**
+     * 取出优先级最高的任务，同级时先进先出，跳过同时下载数已满的用户。
+     * 没有可取的任务且 running 不再成立时返回 null。取出的任务结束后需调用 {@link #finish(FileTask)}
+     */
+    public synchronized FileTask take(BooleanSupplier running) throws InterruptedException {
+        Entry best;
+        while ((best = findBest()) == null) {
+            if (!running.getAsBoolean()) return null;
+            wait();
+        }
+        entries.remove(best);
+        if (pendingYields > 0 && !best.isYielded)
+            pendingYields--;
+        takenTimes.put(best.task, best.enqueueTime);
+        activePeers.merge(best.task.getKey().getUserId(), 1, Integer::sum);
+        return best.task;
+    }
+
+    /**
+     * 再取出同一用户的至多 max 个任务，和已取出的任务在同一个连接上连续请求，不单独计入同时下载数
+     */
+    public synchronized List<FileTask> takeMore(UUID userId, int max, Predicate<FileTask> filter) {
+        long now = System.currentTimeMillis();
+        List<Entry> matched = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.task.getKey().getUserId().equals(userId) && filter.test(entry.task))
+                matched.add(entry);
+        }
+        // 稳定排序，同级时仍然先进先出
+        matched.sort(Comparator.comparingInt(entry -> getWaitingLevel(entry, now)));
+        List<FileTask> tasks = new ArrayList<>();
+        for (Entry entry : matched.subList(0, Math.min(max, matched.size()))) {
+            entries.remove(entry);
+            tasks.add(entry.task);
+        }
+        return tasks;
+    }
+
+    /**
+     * 移出还在排队的任务，已被取走时返回 false
+     */
+    public synchronized boolean remove(FileTask task) {
+        return entries.removeIf(entry -> entry.task == task);
+    }
+
+    public synchronized void finish(FileTask task) {
+        takenTimes.remove(task);
+        yieldedTasks.remove(task);
+        activePeers.computeIfPresent(task.getKey().getUserId(), (k, v) -> v > 1 ? v - 1 : null);
+        notifyAll();
+    }
+
+    /**
+     * 是否有能立即开始的任务
+     */
+    public synchronized boolean hasWaiting() {
+        return findBest() != null;
+    }
+
+    public synchronized void setMaxPerPeer(int maxPerPeer) {
+        this.maxPerPeer = maxPerPeer;
+        notifyAll();
+    }
+
+    private Entry findBest() {
+        long now = System.currentTimeMillis();
+        Entry best = null;
+        int bestLevel = Integer.MAX_VALUE;
+        for (Entry entry : entries) {
+            if (isPeerFull(entry.task.getKey().getUserId(), null))
+                continue;
+            int level = getWaitingLevel(entry, now);
+            if (level < bestLevel) {
+                best = entry;
+                bestLevel = level;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 该用户同时下载数是否已满，leaving 是即将让出连接的任务，不计入
+     */
+    private boolean isPeerFull(UUID userId, FileTask leaving) {
+        int active = activePeers.getOrDefault(userId, 0);
+        if (leaving != null && leaving.getKey().getUserId().equals(userId))
+            active--;
+        return active >= maxPerPeer;
+    }
+
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    public synchronized void setVisible(FileTask.Key key, boolean visible) {
+        if (visible)
+            visibleKeys.add(key);
+        else
+            visibleKeys.remove(key);
+    }
+
+    /**
+     * 正在下载的 task 是否应该让出连接。等待中有比它优先、让出后能被取走的任务且还没有别的下载为其让出时返回 true。
+     * 返回 true 后 task 应重新加入队列
+     */
+    public synchronized boolean shouldYield(FileTask task) {
+        long now = System.currentTimeMillis();
+        int level = getLevel(task);
+        int higher = 0;
+        for (Entry entry : entries) {
+            // 该用户同时下载数已满时让出也取不走
+            if (getWaitingLevel(entry, now) < level && !isPeerFull(entry.task.getKey().getUserId(), task))
+                higher++;
+        }
+        if (higher <= pendingYields) return false;
+        pendingYields++;
+        yieldedTasks.add(task);
+        return true;
+    }
+
+    private int getWaitingLevel(Entry entry, long now) {
+        int level = getLevel(entry.task);
+        return (int) Math.max(LEVEL_VISIBLE, level - (now - entry.enqueueTime) / AGING_INTERVAL);
+    }
+
+    private int getLevel(FileTask task) {
+        if (visibleKeys.contains(task.getKey()))
+            return LEVEL_VISIBLE;
+        if (task.getFileType() == ChatMessage.FileType.IMAGE)
+            return LEVEL_IMAGE;
+        long size = task.getFileSize();
+        if (size < 0)
+            return LEVEL_UNKNOWN;
+        if (size < SMALL_FILE_SIZE)
+            return LEVEL_SMALL;
+        // 每大一倍降一级
+        int level = LEVEL_LARGE;
+        for (long s = size / SMALL_FILE_SIZE; s > 1 && level < MAX_LEVEL; s >>= 1) {
+            level++;
+        }
+        return level;
+    }
+}
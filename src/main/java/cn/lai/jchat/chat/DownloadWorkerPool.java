@@ -0,0 +1,154 @@
+package cn.lai.jchat.chat;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 下载线程的计数和目标数量。按测得的总吞吐逐个增加线程，吞吐不再上升（网络或磁盘已跑满）时退回一个，
+ * 并在一段时间内不再尝试增加
+ */
+public class DownloadWorkerPool {
+    // 增加线程后吞吐至少提升该比例才算有效
+    private static final double MIN_GAIN = 1.1;
+    private static final int HOLD_ROUNDS = 5;
+    private final int minSize;
+    private final int maxSize;
+    private final AtomicInteger workerCount = new AtomicInteger();
+    private final AtomicInteger busyCount = new AtomicInteger();
+    private final LongAdder downloadedBytes = new LongAdder();
+    private volatile int targetSize;
+    private volatile double throughput;
+    // 以下只在 adjust 中访问
+    private long lastBytes;
+    private long lastTime;
+    private double lastThroughput;
+    private boolean isProbing;
+    private int holdRounds;
+    private final Logger logger = LogManager.getLogger(getClass().getSimpleName());
+
+    public DownloadWorkerPool(int minSize, int maxSize) {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.targetSize = this.minSize;
+    }
+
+    /**
+     * 所有线程都在忙且未达到目标数量时占用一个名额，返回 true 后调用方负责启动线程
+     */
+    public boolean tryAddWorker() {
+        while (true) {
+            int count = workerCount.get();
+            if (count >= targetSize || busyCount.get() < count) return false;
+            if (workerCount.compareAndSet(count, count + 1)) {
+                busyCount.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 线程未能启动或已退出
+     */
+    public void removeWorker(boolean busy) {
+        workerCount.decrementAndGet();
+        if (busy)
+            busyCount.decrementAndGet();
+    }
+
+    /**
+     * 线程数超过目标时让一个空闲线程退出，返回 true 的线程已从计数中移除
+     */
+    public boolean tryRetire() {
+        while (true) {
+            int count = workerCount.get();
+            if (count <= targetSize) return false;
+            if (workerCount.compareAndSet(count, count - 1)) {
+                busyCount.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public boolean isOversized() {
+        return workerCount.get() > targetSize;
+    }
+
+    public void onIdle() {
+        busyCount.decrementAndGet();
+    }
+
+    public void onBusy() {
+        busyCount.incrementAndGet();
+    }
+
+    public void addDownloadedBytes(long bytes) {
+        downloadedBytes.add(bytes);
+    }
+
+    /**
+     * 定期调用。backlog 表示有任务在排队等待线程，返回调整后的目标数量
+     */
+    public synchronized int adjust(long now, boolean backlog) {
+        long bytes = downloadedBytes.sum();
+        if (lastTime == 0 || now <= lastTime) {
+            lastTime = now;
+            lastBytes = bytes;
+            return targetSize;
+        }
+        double current = (bytes - lastBytes) * 1000.0 / (now - lastTime);
+        lastTime = now;
+        lastBytes = bytes;
+        throughput = current;
+        int target = targetSize;
+        if (holdRounds > 0)
+            holdRounds--;
+        if (!backlog) {
+            // 没有排队的任务，逐步缩回最小数量
+            isProbing = false;
+            if (target > minSize && busyCount.get() < target)
+                target--;
+        } else if (isProbing) {
+            // 上次增加了线程，看吞吐是否随之上升
+            isProbing = false;
+            if (current < lastThroughput * MIN_GAIN) {
+                target = Math.max(minSize, target - 1);
+                holdRounds = HOLD_ROUNDS;
+            }
+        } else if (holdRounds == 0 && target < maxSize && busyCount.get() >= target) {
+            target++;
+            isProbing = true;
+        }
+        lastThroughput = current;
+        if (target != targetSize) {
+            logger.debug("下载线程目标 " + targetSize + " -> " + target + " 吞吐 " + (long) (current / 1024) + "KB/s");
+            targetSize = target;
+        }
+        return target;
+    }
+
+    public int getWorkerCount() {
+        return workerCount.get();
+    }
+
+    public int getBusyCount() {
+        return busyCount.get();
+    }
+
+    public int getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * 最近一个统计周期的下载吞吐，字节每秒
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes.sum();
+    }
+}
@@ -0,0 +1,127 @@
+package cn.lai.jchat.chat;
+
+import cn.lai.jchat.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 单个 Selector 线程，所有注册在其上的通道只会在该线程内被读写
+ */
+public class EventLoop {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isAlive = new AtomicBoolean();
+    // 同一个循环内的连接共用读缓冲，连接本身空闲时不占用额外内存
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final String name;
+    private Thread thread;
+    private final Logger logger = LogManager.getLogger(getClass().getSimpleName());
+
+    public interface Handler {
+        void onReady(SelectionKey key) throws IOException;
+
+        void onError(SelectionKey key, Exception e);
+    }
+
+    public EventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    public void start() {
+        if (isAlive.get()) return;
+        isAlive.set(true);
+        thread = new Thread(this::loop, name);
+        thread.start();
+    }
+
+    public void stop() {
+        isAlive.set(false);
+        selector.wakeup();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop())
+            selector.wakeup();
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * 只能在循环线程内调用
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, ops, handler);
+    }
+
+    private void loop() {
+        logger.debug(name + " 开始");
+        while (isAlive.get()) {
+            try {
+                // 循环线程内提交的任务不会唤醒 selector，这里不能阻塞
+                if (tasks.isEmpty())
+                    selector.select();
+                else
+                    selector.selectNow();
+            } catch (IOException e) {
+                logger.warn("select 失败", e);
+                break;
+            }
+            runTasks();
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid())
+                        handler.onReady(key);
+                } catch (CancelledKeyException ignored) {
+                } catch (Exception e) {
+                    handler.onError(key, e);
+                }
+            }
+        }
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            Utils.closeQuietly(key.channel());
+        }
+        Utils.closeQuietly(selector);
+        logger.debug(name + " 结束");
+    }
+
+    /**
+     * 任务中提交的新任务留到下一轮，保证两者之间至少 select 一次
+     */
+    private void runTasks() {
+        Runnable task;
+        for (int n = tasks.size(); n > 0 && (task = tasks.poll()) != null; n--) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.warn("任务执行失败", e);
+            }
+        }
+    }
+}
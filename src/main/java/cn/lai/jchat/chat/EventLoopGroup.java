@@ -0,0 +1,107 @@
+package cn.lai.jchat.chat;
+
+import cn.lai.jchat.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EventLoopGroup {
+    private final EventLoop[] loops;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    private final Logger logger = LogManager.getLogger(getClass().getSimpleName());
+
+    public EventLoopGroup(int size) throws IOException {
+        loops = new EventLoop[size];
+        for (int i = 0; i < size; i++) {
+            loops[i] = new EventLoop("event-loop-" + i);
+        }
+    }
+
+    public void start() {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    public void stop() {
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+    }
+
+    public EventLoop next() {
+        return loops[Math.floorMod(nextIndex.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * 通道已注册时返回其所在的循环，否则分配一个新的
+     */
+    public EventLoop loopOf(SocketChannel channel) {
+        for (EventLoop loop : loops) {
+            SelectionKey key = channel.keyFor(loop.getSelector());
+            if (key != null && key.isValid()) return loop;
+        }
+        return next();
+    }
+
+    /**
+     * 通道空闲时交给 Selector 看管，可读后切回阻塞模式并回调，回调线程可以直接用阻塞 IO 处理请求
+     */
+    public void awaitReadable(SocketChannel channel, Runnable onReadable) {
+        EventLoop loop = loopOf(channel);
+        loop.execute(() -> {
+            try {
+                loop.register(channel, SelectionKey.OP_READ, new EventLoop.Handler() {
+                    @Override
+                    public void onReady(SelectionKey key) {
+                        key.cancel();
+                        // 取消的键要等下一次 select 才真正注销，之后才能切回阻塞模式
+                        loop.execute(() -> {
+                            try {
+                                channel.configureBlocking(true);
+                                onReadable.run();
+                            } catch (Exception e) {
+                                onError(key, e);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onError(SelectionKey key, Exception e) {
+                        logger.debug("等待可读失败", e);
+                        Utils.closeQuietly(channel);
+                    }
+                });
+            } catch (IOException e) {
+                logger.debug("注册失败", e);
+                Utils.closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * 注销通道并切回阻塞模式后回调，用于已有数据缓存在用户态、不必再等待可读的情况
+     */
+    public void runBlocking(SocketChannel channel, Runnable task) {
+        EventLoop loop = loopOf(channel);
+        loop.execute(() -> {
+            SelectionKey key = channel.keyFor(loop.getSelector());
+            if (key != null)
+                key.cancel();
+            // 下一轮循环 select 之后键才真正注销
+            loop.execute(() -> {
+                try {
+                    channel.configureBlocking(true);
+                    task.run();
+                } catch (Exception e) {
+                    logger.debug("切换阻塞模式失败", e);
+                    Utils.closeQuietly(channel);
+                }
+            });
+        });
+    }
+}
@@ -0,0 +1,228 @@
+package cn.lai.jchat.chat;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * 文件按固定大小分块的 SHA-256 摘要。发送方在分享时计算并缓存，接收方下载时逐块校验，
+ * 只需重新获取损坏的块
+ */
+public class FileDigest {
+    public static final int BLOCK_SIZE = 1024 * 1024;
+    private static final String ALGORITHM = "SHA-256";
+    private static final int DIGEST_SIZE = 32;
+    // 接收时允许的最大块数，对应 1TB 的文件
+    private static final int MAX_BLOCK_COUNT = 1 << 20;
+    private final long fileSize;
+    private final long lastModified;
+    private final ByteString[] blocks;
+    private String contentHash;
+
+    private FileDigest(long fileSize, long lastModified, ByteString[] blocks) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.blocks = blocks;
+    }
+
+    public static FileDigest compute(File file) throws IOException {
+        long lastModified = file.lastModified();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ByteString[] blocks = new ByteString[getBlockCount(fileSize)];
+            MessageDigest md = newDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (int i = 0; i < blocks.length; i++) {
+                long position = (long) i * BLOCK_SIZE;
+                long remainSize = Math.min(BLOCK_SIZE, fileSize - position);
+                while (remainSize > 0) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(remainSize, buffer.capacity()));
+                    int size = channel.read(buffer, position);
+                    if (size <= 0)
+                        throw new IOException("文件长度已变化 " + file);
+                    buffer.flip();
+                    md.update(buffer);
+                    position += size;
+                    remainSize -= size;
+                }
+                blocks[i] = ByteString.of(md.digest());
+            }
+            return new FileDigest(fileSize, lastModified, blocks);
+        }
+    }
+
+    /**
+     * 文件在计算摘要后被修改过时返回 false
+     */
+    public boolean matches(File file) {
+        return file.length() == fileSize && file.lastModified() == lastModified;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getBlockCount() {
+        return blocks.length;
+    }
+
+    public long getBlockOffset(int index) {
+        return (long) index * BLOCK_SIZE;
+    }
+
+    public long getBlockLength(int index) {
+        return Math.min(BLOCK_SIZE, fileSize - getBlockOffset(index));
+    }
+
+    /**
+     * 整个文件内容的标识，由文件大小和各块摘要再做一次摘要得到，双方不需要额外传输
+     */
+    public synchronized String getContentHash() {
+        if (contentHash == null) {
+            MessageDigest md = newDigest();
+            md.update(ByteBuffer.allocate(Long.BYTES).putLong(0, fileSize));
+            for (ByteString block : blocks) {
+                md.update(block.toByteArray());
+            }
+            contentHash = ByteString.of(md.digest()).hex();
+        }
+        return contentHash;
+    }
+
+    /**
+     * 格式：一行 "块大小 文件大小 块数"，随后是每块 32 字节的摘要
+     */
+    public void write(BufferedSink sink) throws IOException {
+        sink.writeUtf8(BLOCK_SIZE + " " + fileSize + " " + blocks.length + "\n");
+        for (ByteString block : blocks) {
+            sink.write(block);
+        }
+    }
+
+    public static FileDigest read(BufferedSource source, String headerLine) throws IOException {
+        return read(source, headerLine, -1);
+    }
+
+    /**
+     * 读取对方发来的摘要。块大小不同或文件大小与 expectedSize 不符时跳过摘要返回 null，expectedSize 小于 0 表示未知
+     */
+    public static FileDigest read(BufferedSource source, String headerLine, long expectedSize) throws IOException {
+        String[] parts = headerLine.split(" ");
+        if (parts.length < 3)
+            throw new IOException("摘要格式错误 " + headerLine);
+        int blockSize;
+        long fileSize;
+        int count;
+        try {
+            blockSize = Integer.parseInt(parts[0]);
+            fileSize = Long.parseLong(parts[1]);
+            count = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            throw new IOException("摘要格式错误 " + headerLine, e);
+        }
+        // 先检查头部再分配，块数由对方决定
+        if (blockSize <= 0 || fileSize < 0 || count < 0 || count > MAX_BLOCK_COUNT
+                || count != getBlockCount(fileSize, blockSize))
+            throw new IOException("摘要格式错误 " + headerLine);
+        if (blockSize != BLOCK_SIZE || expectedSize >= 0 && fileSize != expectedSize) {
+            // 块大小不同时无法逐块校验，文件已变化时摘要也用不上
+            source.skip((long) count * DIGEST_SIZE);
+            return null;
+        }
+        ByteString[] blocks = new ByteString[count];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = source.readByteString(DIGEST_SIZE);
+        }
+        return new FileDigest(fileSize, 0, blocks);
+    }
+
+    private static int getBlockCount(long fileSize) {
+        return (int) getBlockCount(fileSize, BLOCK_SIZE);
+    }
+
+    private static long getBlockCount(long fileSize, int blockSize) {
+        if (blockSize <= 0) return -1;
+        return fileSize / blockSize + (fileSize % blockSize == 0 ? 0 : 1);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 从块的起始位置开始，边接收边计算摘要
+     */
+    public Verifier verifier(long position) {
+        if (position % BLOCK_SIZE != 0)
+            throw new IllegalArgumentException("起始位置未对齐 " + position);
+        return new Verifier(position);
+    }
+
+    public class Verifier {
+        private final MessageDigest md = newDigest();
+        private final BitSet damagedBlocks = new BitSet();
+        private long position;
+
+        private Verifier(long position) {
+            this.position = position;
+        }
+
+        public void update(byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                int size = (int) Math.min(length, getBlockEnd() - position);
+                md.update(bytes, offset, size);
+                offset += size;
+                length -= size;
+                onUpdated(size);
+            }
+        }
+
+        public void update(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                int size = (int) Math.min(buffer.remaining(), getBlockEnd() - position);
+                ByteBuffer slice = buffer.slice();
+                slice.limit(size);
+                md.update(slice);
+                buffer.position(buffer.position() + size);
+                onUpdated(size);
+            }
+        }
+
+        private long getBlockEnd() {
+            int index = (int) (position / BLOCK_SIZE);
+            if (index >= blocks.length)
+                throw new IllegalStateException("超出文件长度 " + position);
+            return getBlockOffset(index) + getBlockLength(index);
+        }
+
+        private void onUpdated(int size) {
+            int index = (int) (position / BLOCK_SIZE);
+            position += size;
+            if (position == getBlockOffset(index) + getBlockLength(index)) {
+                if (!blocks[index].equals(ByteString.of(md.digest())))
+                    damagedBlocks.set(index);
+            }
+        }
+
+        /**
+         * 已经接收完整但摘要不符的块
+         */
+        public BitSet getDamagedBlocks() {
+            return damagedBlocks;
+        }
+    }
+}
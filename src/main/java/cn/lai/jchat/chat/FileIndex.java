@@ -0,0 +1,257 @@
+package cn.lai.jchat.chat;
+
+import cn.lai.jchat.Utils;
+import cn.lai.jchat.model.FileTask;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 分享的文件和下载完成的文件的磁盘索引，重启后仍能响应之前分享的资源，已下载的文件不必重新下载。
+ * 只追加写入，每条记录一行，后面的记录覆盖前面的。首次访问时才读取，过期的记录过多时重写整个文件
+ */
+public class FileIndex {
+    private static final String TYPE_SHARE = "S";
+    private static final String TYPE_DOWNLOAD = "D";
+    // 过期记录超过这个数量才重写
+    private static final int COMPACT_THRESHOLD = 1024;
+    private final File file;
+    private final Map<UUID, Entry> shares = new HashMap<>();
+    private final Map<File, Entry> sharePaths = new HashMap<>();
+    private final Map<FileTask.Key, Entry> downloads = new HashMap<>();
+    private final Map<UUID, Entry> downloadResIds = new HashMap<>();
+    private boolean isLoaded = false;
+    private int lineCount = 0;
+    private BufferedSink sink;
+    private final Logger logger = LogManager.getLogger(getClass().getSimpleName());
+
+    public static class Entry {
+        private final UUID resId;
+        private final File file;
+        private final long length;
+        private final long lastModified;
+
+        private Entry(UUID resId, File file, long length, long lastModified) {
+            this.resId = resId;
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        public UUID getResId() {
+            return resId;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * 文件被删除或修改过时返回 false
+         */
+        public boolean isValid() {
+            return file.isFile() && file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * @param file 索引文件，为 null 时只保存在内存中
+     */
+    public FileIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 读取索引文件，可以提前在后台调用，重复调用不会再读
+     */
+    public synchronized void load() {
+        if (isLoaded) return;
+        isLoaded = true;
+        if (file == null || !file.exists()) return;
+        long start = System.currentTimeMillis();
+        try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+            String line;
+            while ((line = source.readUtf8Line()) != null) {
+                lineCount++;
+                try {
+                    parseLine(line);
+                } catch (IllegalArgumentException e) {
+                    // 写入中断留下的半行
+                    logger.debug("忽略索引记录 " + line);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("读取文件索引失败 " + file, e);
+        }
+        logger.debug("读取文件索引 " + lineCount + " 行，耗时 " + (System.currentTimeMillis() - start) + "ms");
+        if (lineCount - shares.size() - downloads.size() > COMPACT_THRESHOLD)
+            compact();
+    }
+
+    private void parseLine(String line) {
+        String[] parts = line.split(" ", 2);
+        if (TYPE_SHARE.equals(parts[0])) {
+            String[] fields = parts[1].split(" ", 4);
+            if (fields.length < 4) throw new IllegalArgumentException(line);
+            Entry entry = new Entry(UUID.fromString(fields[0]), new File(fields[3]),
+                    Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            putShareEntry(entry);
+        } else if (TYPE_DOWNLOAD.equals(parts[0])) {
+            String[] fields = parts[1].split(" ", 5);
+            if (fields.length < 5) throw new IllegalArgumentException(line);
+            FileTask.Key key = new FileTask.Key(true, UUID.fromString(fields[0]), UUID.fromString(fields[1]));
+            Entry entry = new Entry(key.getResId(), new File(fields[4]),
+                    Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+            downloads.put(key, entry);
+            downloadResIds.put(key.getResId(), entry);
+        } else {
+            throw new IllegalArgumentException(line);
+        }
+    }
+
+    private void putShareEntry(Entry entry) {
+        Entry old = shares.put(entry.resId, entry);
+        if (old != null && sharePaths.get(old.file) == old)
+            sharePaths.remove(old.file);
+        sharePaths.put(entry.file, entry);
+    }
+
+    /**
+     * 之前分享的资源，文件已变化时返回 null
+     */
+    public synchronized Entry getShare(UUID resId) {
+        load();
+        Entry entry = shares.get(resId);
+        return entry != null && entry.isValid() ? entry : null;
+    }
+
+    /**
+     * 同一个文件之前分享时的记录，文件已变化时返回 null
+     */
+    public synchronized Entry findShare(File file) {
+        load();
+        Entry entry = sharePaths.get(file.getAbsoluteFile());
+        return entry != null && entry.isValid() ? entry : null;
+    }
+
+    public synchronized void putShare(UUID resId, File file) {
+        load();
+        file = file.getAbsoluteFile();
+        Entry entry = new Entry(resId, file, file.length(), file.lastModified());
+        putShareEntry(entry);
+        if (!isWritable(file)) return;
+        append(TYPE_SHARE + " " + resId + " " + entry.length + " " + entry.lastModified + " " + file.getPath());
+    }
+
+    /**
+     * 下载完成的文件，已被删除或修改时返回 null
+     */
+    public synchronized Entry getDownload(FileTask.Key key) {
+        load();
+        Entry entry = downloads.get(key);
+        return entry != null && entry.isValid() ? entry : null;
+    }
+
+    /**
+     * 按资源 id 查找下载完成的文件，不区分分享者
+     */
+    public synchronized Entry findDownload(UUID resId) {
+        load();
+        Entry entry = downloadResIds.get(resId);
+        return entry != null && entry.isValid() ? entry : null;
+    }
+
+    public synchronized void putDownload(FileTask.Key key, File file) {
+        load();
+        file = file.getAbsoluteFile();
+        Entry entry = new Entry(key.getResId(), file, file.length(), file.lastModified());
+        downloads.put(key, entry);
+        downloadResIds.put(key.getResId(), entry);
+        if (!isWritable(file)) return;
+        append(TYPE_DOWNLOAD + " " + key.getUserId() + " " + key.getResId() + " " + entry.length + " "
+                + entry.lastModified + " " + file.getPath());
+    }
+
+    /**
+     * 每条记录占一行，路径中有换行的文件只保存在内存中
+     */
+    private boolean isWritable(File file) {
+        String path = file.getPath();
+        if (path.indexOf('\n') < 0 && path.indexOf('\r') < 0) return true;
+        logger.debug("跳过无法写入索引的文件名 " + path);
+        return false;
+    }
+
+    private void append(String line) {
+        if (file == null) return;
+        try {
+            if (sink == null) {
+                File parent = file.getAbsoluteFile().getParentFile();
+                if (parent != null)
+                    parent.mkdirs();
+                sink = Okio.buffer(Okio.appendingSink(file));
+            }
+            sink.writeUtf8(line).writeByte('\n');
+            sink.flush();
+            lineCount++;
+        } catch (IOException e) {
+            logger.warn("写入文件索引失败 " + file, e);
+            Utils.closeQuietly(sink);
+            sink = null;
+        }
+    }
+
+    /**
+     * 只保留有效的记录，先写入临时文件再替换
+     */
+    private void compact() {
+        File tmp = new File(file.getPath() + ".tmp");
+        int count = 0;
+        try (BufferedSink out = Okio.buffer(Okio.sink(tmp))) {
+            for (Entry entry : shares.values()) {
+                if (!entry.isValid() || !isWritable(entry.file)) continue;
+                out.writeUtf8(TYPE_SHARE + " " + entry.resId + " " + entry.length + " " + entry.lastModified
+                        + " " + entry.file.getPath() + "\n");
+                count++;
+            }
+            for (Map.Entry<FileTask.Key, Entry> e : downloads.entrySet()) {
+                Entry entry = e.getValue();
+                if (!entry.isValid() || !isWritable(entry.file)) continue;
+                out.writeUtf8(TYPE_DOWNLOAD + " " + e.getKey().getUserId() + " " + entry.resId + " " + entry.length
+                        + " " + entry.lastModified + " " + entry.file.getPath() + "\n");
+                count++;
+            }
+        } catch (IOException e) {
+            logger.warn("重写文件索引失败 " + file, e);
+            tmp.delete();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("重写文件索引 " + lineCount + " -> " + count);
+            lineCount = count;
+        } catch (IOException e) {
+            logger.warn("重写文件索引失败 " + file, e);
+            tmp.delete();
+        }
+    }
+
+    public synchronized void close() {
+        Utils.closeQuietly(sink);
+        sink = null;
+    }
+}
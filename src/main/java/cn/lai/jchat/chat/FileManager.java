@@ -9,54 +9,218 @@ import okio.Okio;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class FileManager {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // 单次 transferTo 的上限，期间无法响应停止
+    private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+    // 接收时攒满这么多再写入文件
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final long PROGRESS_INTERVAL = 100;
+    private static final long ADJUST_INTERVAL = 2000;
+    // 不超过一个摘要块的文件可以在一个连接上连续请求
+    private static final long BATCH_FILE_SIZE = FileDigest.BLOCK_SIZE;
+    private static final int MAX_BATCH = 32;
+    // 一次告知下载方的已有文件的用户数
+    private static final int MAX_HOLDERS = 8;
     private final AtomicBoolean isAlive = new AtomicBoolean();
-    private final BlockingQueue<FileTask> downloadQueue = new LinkedBlockingQueue<>();
+    private final DownloadScheduler downloadQueue = new DownloadScheduler();
     private final Map<FileTask.Key, FileTask> fileTaskMap = new HashMap<>();
     private final Map<UUID, File> idFileMap = new HashMap<>();
+    // 同一个文件再次分享时沿用之前的 id
+    private final Map<File, SharedFile> sharedFiles = new HashMap<>();
+    // 打包分享的文件和目录
+    private final Map<UUID, List<File>> idBatchMap = new HashMap<>();
+    // 自己分享的资源已被哪些用户下载完成
+    private final Map<UUID, Set<UUID>> resourceHolders = new HashMap<>();
+    // 已告知分享者的下载，只有这些会提供给其他用户
+    private final Set<UUID> announcedDownloads = new HashSet<>();
+    private final ContentIndex contentIndex = new ContentIndex();
+    private final DownloadNameIndex downloadNames = new DownloadNameIndex(new File(Constants.DOWNLOAD_PATH));
+    private final FileIndex fileIndex;
     private final Logger logger = LogManager.getLogger(getClass().getSimpleName());
     private final ChatManager chatManager;
-    private final AtomicInteger downloadWorkerSize = new AtomicInteger();
-    private final AtomicInteger busyDownloadWorkerSize = new AtomicInteger();
+    private final DownloadWorkerPool downloadPool;
+    private final BandwidthLimiter uploadLimiter;
+    private final BandwidthLimiter downloadLimiter;
+    private final TransferStats transferStats = new TransferStats();
     private final Map<UUID, Set<FileTaskSubscriber>> fileTaskSubscribers = new HashMap<>();
-    private final Map<FileTask.Key, FileTask> pendingUpdateTask = new HashMap<>();
+    private final Set<UUID> legacyUserIds = new HashSet<>();
+    private final Map<FileTask.Key, FileTask> pendingUpdateTask = new ConcurrentHashMap<>();
+    private final AtomicBoolean isUpdateScheduled = new AtomicBoolean();
     private final Timer timer = new Timer();
     private final Map<FileTask.Key, FileTask> failedDownloadTask = new HashMap<>();
+    private final Map<FileTask.Key, SegmentedDownload> segmentedDownloads = new HashMap<>();
+    private final Map<UUID, FileDigest> fileDigests = new HashMap<>();
 
     public FileManager(ChatManager chatManager) {
         this.chatManager = chatManager;
+        ChatConfig config = chatManager.getConfig();
+        downloadPool = new DownloadWorkerPool(config.getMinDownloadWorkers(), config.getMaxDownloadWorkers());
+        downloadQueue.setMaxPerPeer(config.getMaxDownloadsPerPeer());
+        uploadLimiter = new BandwidthLimiter(config.getUploadRateLimit(), config.getPeerRateLimit());
+        downloadLimiter = new BandwidthLimiter(config.getDownloadRateLimit(), config.getPeerRateLimit());
+        String indexPath = config.getFileIndexPath();
+        fileIndex = new FileIndex(indexPath == null ? null : new File(indexPath));
     }
 
     public void start() {
         if (isAlive.get()) return;
         isAlive.set(true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                adjustDownloadWorkers();
+            }
+        }, ADJUST_INTERVAL, ADJUST_INTERVAL);
+        // 索引在后台读取，不拖慢启动
+        try {
+            chatManager.getExecutor().execute("file-index", fileIndex::load);
+            chatManager.getExecutor().execute("download-watch", downloadNames::watch);
+        } catch (RejectedExecutionException ignored) {
+        }
     }
 
     public void stop() {
         if (!isAlive.get()) return;
         isAlive.set(false);
         timer.cancel();
+        downloadQueue.wakeUp();
+        fileIndex.close();
+        downloadNames.close();
+    }
+
+    private static class SharedFile {
+        final UUID id;
+        final long length;
+        final long lastModified;
+
+        SharedFile(UUID id, File file) {
+            this.id = id;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        boolean matches(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * 分享文件，同一个文件未修改时返回相同的 id，对方已下载过的不会重复下载
+     */
+    public UUID share(File file) {
+        File key = file.getAbsoluteFile();
+        FileIndex.Entry entry = fileIndex.findShare(key);
+        UUID id;
+        synchronized (this) {
+            SharedFile shared = sharedFiles.get(key);
+            if (shared != null && shared.matches(file))
+                return shared.id;
+            // 重启前分享过
+            id = entry != null ? entry.getResId() : UUID.randomUUID();
+            idFileMap.put(id, file);
+            sharedFiles.put(key, new SharedFile(id, file));
+        }
+        if (entry == null)
+            fileIndex.putShare(id, file);
+        // 提前计算摘要，对方请求时通常已经算好
+        try {
+            chatManager.getExecutor().execute("file-digest", () -> getFileDigest(id, file));
+        } catch (RejectedExecutionException ignored) {
+        }
+        return id;
+    }
+
+    private synchronized boolean isAnnounced(UUID resId) {
+        return announcedDownloads.contains(resId);
+    }
+
+    private synchronized void addHolder(UUID resId, UUID userId) {
+        resourceHolders.computeIfAbsent(resId, k -> new LinkedHashSet<>()).add(userId);
+    }
+
+    /**
+     * 随机挑选几个已有该文件的用户，不包括请求者
+     */
+    private synchronized List<UUID> getHolders(UUID resId, UUID requester) {
+        Set<UUID> holders = resourceHolders.get(resId);
+        if (holders == null) return Collections.emptyList();
+        List<UUID> list = new ArrayList<>(holders);
+        list.remove(requester);
+        Collections.shuffle(list);
+        return list.subList(0, Math.min(MAX_HOLDERS, list.size()));
     }
 
-    public synchronized UUID share(File file) {
+    /**
+     * 把多个文件和目录作为一个资源分享，对方一次请求全部接收
+     */
+    public synchronized UUID shareBatch(List<File> files) {
         UUID id = UUID.randomUUID();
-        idFileMap.put(id, file);
+        idBatchMap.put(id, new ArrayList<>(files));
         return id;
     }
 
-    private synchronized File getSharedFile(UUID resId) {
-        return idFileMap.get(resId);
+    private synchronized List<File> getSharedBatch(UUID resId) {
+        return idBatchMap.get(resId);
+    }
+
+    /**
+     * 文件修改过时重新计算，读取失败时返回 null
+     */
+    private FileDigest getFileDigest(UUID resId, File file) {
+        synchronized (this) {
+            FileDigest digest = fileDigests.get(resId);
+            if (digest != null && digest.matches(file))
+                return digest;
+        }
+        try {
+            FileDigest digest = FileDigest.compute(file);
+            synchronized (this) {
+                fileDigests.put(resId, digest);
+            }
+            contentIndex.put(digest.getContentHash(), file);
+            return digest;
+        } catch (IOException e) {
+            logger.warn("计算文件摘要失败 " + file, e);
+            return null;
+        }
+    }
+
+    private File getSharedFile(UUID resId) {
+        synchronized (this) {
+            File file = idFileMap.get(resId);
+            if (file != null) return file;
+        }
+        FileIndex.Entry entry = fileIndex.getShare(resId);
+        if (entry == null) {
+            // 下载完成的文件也可以提供给同样在下载的用户，完成时已记入索引
+            if (!isAnnounced(resId)) return null;
+            FileIndex.Entry downloaded = fileIndex.findDownload(resId);
+            return downloaded == null ? null : downloaded.getFile();
+        }
+        synchronized (this) {
+            idFileMap.putIfAbsent(resId, entry.getFile());
+            sharedFiles.putIfAbsent(entry.getFile(), new SharedFile(resId, entry.getFile()));
+            return idFileMap.get(resId);
+        }
     }
 
     public void download(UUID contextUserId, UUID resId, String fileName) {
@@ -65,27 +229,195 @@ public class FileManager {
         download(task);
     }
 
+    public void download(UUID contextUserId, ChatMessage.FileResource resource) {
+        FileTask.Key key = new FileTask.Key(true, contextUserId, resource.getResId());
+        FileTask task = new FileTask(key, resource.getFileName());
+        task.setFileSize(resource.getFileSize());
+        task.setFileType(resource.getType());
+        download(task);
+    }
+
+    /**
+     * 界面上显示或不再显示某个文件时调用，正在显示的文件优先下载
+     */
+    public void setVisible(UUID contextUserId, UUID resId, boolean visible) {
+        downloadQueue.setVisible(new FileTask.Key(true, contextUserId, resId), visible);
+    }
+
+    /**
+     * 暂停发送或接收，已收到的数据保留，继续时从中断处开始。正在传输的任务在处理完当前一段数据后停止
+     */
+    public void pause(FileTask.Key key) {
+        if (stopTask(key, FileTask.PAUSED))
+            runControl(key, FileSession.REQUEST_PAUSE, null);
+    }
+
+    /**
+     * 取消发送或接收，已收到的部分被删除
+     */
+    public void cancel(FileTask.Key key) {
+        if (stopTask(key, FileTask.CANCELED))
+            runControl(key, FileSession.REQUEST_CANCEL, null);
+    }
+
+    /**
+     * 继续暂停、取消或失败的任务。先告知对方，对方才会再响应这个资源的请求
+     */
+    public void resume(FileTask.Key key) {
+        FileTask task = resumeTask(key);
+        if (task != null)
+            runControl(key, FileSession.REQUEST_RESUME, key.isDownloadTask() ? () -> download(task) : null);
+    }
+
+    private boolean stopTask(FileTask.Key key, float state) {
+        FileTask task;
+        synchronized (this) {
+            task = fileTaskMap.get(key);
+        }
+        if (task == null || task.isDone()) return false;
+        task.setStopRequest(state);
+        if (key.isDownloadTask())
+            downloadQueue.remove(task);
+        // 发送任务在两次请求之间也保持进度，直接更新；接收任务不在传输中时直接更新，传输中的由传输线程停下后更新
+        if (!key.isDownloadTask() || task.getProgress() < 0f)
+            updateTask(task, state, false);
+        return true;
+    }
+
+    /**
+     * 返回需要重新开始的任务，没有时返回 null
+     */
+    private FileTask resumeTask(FileTask.Key key) {
+        FileTask task;
+        synchronized (this) {
+            task = fileTaskMap.get(key);
+        }
+        if (task == null || task.isDone() || !task.isStopRequested() && task.getProgress() >= 0f) return null;
+        task.setStopRequest(0f);
+        // 传输线程还没停下，接着传
+        if (task.getProgress() >= 0f) return null;
+        if (!key.isDownloadTask())
+            // 等待对方重新请求
+            updateTask(task, FileTask.IDLE, false);
+        return task;
+    }
+
+    /**
+     * 在后台告知对方，然后执行 then
+     */
+    private void runControl(FileTask.Key key, String request, Runnable then) {
+        Runnable control = () -> {
+            sendControl(key.getUserId(), request, key.getResId());
+            if (then != null)
+                then.run();
+        };
+        try {
+            chatManager.getExecutor().execute("file-control", control);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    private void sendControl(UUID userId, String request, UUID resId) {
+        FileSession session;
+        try {
+            session = getOrCreateFileSession(userId);
+        } catch (Exception e) {
+            logger.debug("无法告知对方 " + request + " " + resId, e);
+            return;
+        }
+        try {
+            if (session.isControllable()) {
+                session.getSink().writeUtf8(request + " " + resId + "\n");
+                session.getSink().flush();
+                // 等对方处理完再继续，之后的请求才不会被拒绝
+                if (session.getSource().readUtf8Line() == null)
+                    throw new EOFException();
+            }
+        } catch (IOException e) {
+            logger.debug("无法告知对方 " + request + " " + resId, e);
+            chatManager.notifySessionClosed(session);
+        } finally {
+            chatManager.getSessionManager().releaseDownloadSession(session);
+        }
+    }
+
+    /**
+     * 对方暂停、继续或取消了与自己之间的传输，资源可能是任一方分享的
+     */
+    private void onRemoteControl(UUID userId, String request, UUID resId) {
+        for (boolean isDownload : new boolean[]{true, false}) {
+            FileTask.Key key = new FileTask.Key(isDownload, userId, resId);
+            if (FileSession.REQUEST_PAUSE.equals(request)) {
+                stopTask(key, FileTask.PAUSED);
+            } else if (FileSession.REQUEST_CANCEL.equals(request)) {
+                stopTask(key, FileTask.CANCELED);
+            } else {
+                FileTask task = resumeTask(key);
+                if (task != null && isDownload)
+                    download(task);
+            }
+        }
+    }
+
+    boolean shouldYield(FileTask task) {
+        // 有空闲的下载线程时等待的任务自会被取走，不必让出
+        if (downloadPool.getBusyCount() < downloadPool.getWorkerCount()) return false;
+        return downloadQueue.shouldYield(task);
+    }
+
+    boolean isAlive() {
+        return isAlive.get();
+    }
+
     private synchronized void download(FileTask task) {
         FileTask.Key key = task.getKey();
         if (fileTaskMap.containsKey(key)) {
             task = fileTaskMap.get(key);
-            if (task.getProgress() >= 0f) return;
+            // 暂停或取消的任务只能通过 resume 继续
+            if (task.getProgress() >= 0f || task.isStopRequested()) return;
         }
         updateTask(task, FileTask.IDLE, false);
         fileTaskMap.put(key, task);
+        downloadQueue.put(task);
+        startDownloadWorker();
+    }
+
+    /**
+     * 所有下载线程都在忙且未达到目标数量时增加一个
+     */
+    private void startDownloadWorker() {
+        if (!downloadPool.tryAddWorker()) return;
         try {
-            downloadQueue.put(task);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        if (downloadWorkerSize.get() < Constants.MAX_DOWNLOAD_WORKERS
-                && busyDownloadWorkerSize.get() == downloadWorkerSize.get()) {
-            downloadWorkerSize.incrementAndGet();
-            busyDownloadWorkerSize.incrementAndGet();
-            new Thread(this::downloadWorker).start();
+            chatManager.getExecutor().execute("file-download", this::downloadWorker);
+        } catch (RejectedExecutionException e) {
+            downloadPool.removeWorker(true);
         }
     }
 
+    private void adjustDownloadWorkers() {
+        downloadPool.adjust(System.currentTimeMillis(), downloadQueue.hasWaiting());
+        if (downloadPool.isOversized())
+            downloadQueue.wakeUp();
+        else if (downloadQueue.hasWaiting())
+            startDownloadWorker();
+    }
+
+    public DownloadWorkerPool getDownloadPool() {
+        return downloadPool;
+    }
+
+    public BandwidthLimiter getUploadLimiter() {
+        return uploadLimiter;
+    }
+
+    public BandwidthLimiter getDownloadLimiter() {
+        return downloadLimiter;
+    }
+
+    public TransferStats getTransferStats() {
+        return transferStats;
+    }
+
     public void notifyChatSessionConnected(ChatSession chatSession) {
         List<FileTask> tasks;
         synchronized (this) {
@@ -99,6 +431,7 @@ public class FileManager {
     }
 
     public void updateChatMessageFileTask(Collection<ChatMessage> chatMessages) {
+        List<FileTask> restoring = new ArrayList<>();
         for (ChatMessage chatMessage : chatMessages) {
             if (chatMessage.getFile() != null) {
                 FileTask.Key key = new FileTask.Key(!chatMessage.isMine(),
@@ -109,10 +442,22 @@ public class FileManager {
                 }
                 if (task == null) {
                     task = new FileTask(key, chatMessage.getFile().getFileName());
+                    if (key.isDownloadTask())
+                        restoring.add(task);
                 }
                 chatMessage.setFileTask(task);
             }
         }
+        if (restoring.isEmpty()) return;
+        // 在界面线程调用，索引可能还在读取，先显示未知状态，查到后通过订阅更新
+        try {
+            chatManager.getExecutor().execute("file-restore", () -> {
+                for (FileTask task : restoring) {
+                    restoreDownload(task);
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+        }
     }
 
     public void updateChatMessageFileTask(ChatMessage chatMessages) {
@@ -121,7 +466,16 @@ public class FileManager {
 
     public void addFileSession(FileSession serverSession) {
         if (serverSession.isClient()) return;
-        new Thread(() -> serverWorker(serverSession)).start();
+        EventLoopGroup group = chatManager.getChatServer().getEventLoopGroup();
+        if (group != null && serverSession.getSocket().getChannel() != null) {
+            awaitRequest(group, serverSession);
+            return;
+        }
+        try {
+            chatManager.getExecutor().execute("file-server", () -> serverWorker(serverSession));
+        } catch (RejectedExecutionException e) {
+            chatManager.notifySessionClosed(serverSession);
+        }
     }
 
     public synchronized void subscribe(UUID userId, FileTaskSubscriber subscriber) {
@@ -138,31 +492,74 @@ public class FileManager {
     }
 
     private File getDownloadFile(FileTask task) {
-        File parent = new File(Constants.DOWNLOAD_PATH);
-        parent.mkdirs();
         String fileName = task.getFileName();
         if (fileName == null) fileName = UUID.randomUUID().toString();
-        int dotIndex = fileName.lastIndexOf('.');
-        final String name = dotIndex == -1 ? fileName : fileName.substring(0, dotIndex);
-        final String ext = dotIndex == -1 ? "" : fileName.substring(dotIndex);
-        String extra = "";
-        int index = 1;
-        while (true) {
-            String fullName = name + extra + ext;
-            File dst = new File(parent, fullName);
-            if (!dst.exists()) return dst;
-            extra = "(" + index + ")";
-            index++;
+        return downloadNames.reserve(fileName);
+    }
+
+    /**
+     * 下载中的内容先写入同目录下的临时文件，完成后再改名，其他程序不会读到写了一半的文件
+     */
+    static File getPartFile(File dst) {
+        return new File(dst.getPath() + Constants.PART_SUFFIX);
+    }
+
+    /**
+     * 打开临时文件并预先分配到文件大小，之后按位置写入
+     */
+    static FileChannel openPartFile(File part, long fileSize) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+            if (file.length() != fileSize)
+                file.setLength(fileSize);
+        }
+        return FileChannel.open(part.toPath(), StandardOpenOption.WRITE);
+    }
+
+    private static void commitPartFile(File part, File dst) throws IOException {
+        try {
+            Files.move(part.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
+    /**
+     * 重启前已下载完成且文件未变化时直接标记为完成
+     */
+    private boolean restoreDownload(FileTask task) {
+        // 读取索引和检查文件都可能较慢，不持有锁
+        FileIndex.Entry entry = fileIndex.getDownload(task.getKey());
+        if (entry == null) return false;
+        synchronized (this) {
+            // 查询期间已开始了另一个任务
+            FileTask current = fileTaskMap.get(task.getKey());
+            if (current != null && current != task) return false;
+            task.setFilePath(entry.getFile().getAbsolutePath());
+            task.setFileSize(entry.getLength());
+            task.setTransferredBytes(entry.getLength());
+            task.setDone(true);
+            task.setProgress(1f);
+            fileTaskMap.put(task.getKey(), task);
+        }
+        updateTask(task);
+        return true;
+    }
+
     private void updateTask(FileTask task, float progress, boolean done) {
+        // 传输因暂停或取消而中断时以用户的操作为准
+        if (!done && progress < 0f && task.isStopRequested())
+            progress = task.getStopRequest();
+        if (progress == FileTask.CANCELED && task.getStopRequest() == FileTask.CANCELED && task.getKey().isDownloadTask())
+            discardPartial(task);
         task.setDone(done);
         task.setProgress(progress);
         updateTask(task);
+        if (done && task.getKey().isDownloadTask() && task.getFilePath() != null)
+            fileIndex.putDownload(task.getKey(), new File(task.getFilePath()));
         if (task.getKey().isDownloadTask()) {
             synchronized (this) {
-                if (progress == FileTask.FAILED || progress == FileTask.CANCELED) {
+                // 用户暂停或取消的任务不自动重试
+                if ((progress == FileTask.FAILED || progress == FileTask.CANCELED) && !task.isStopRequested()) {
                     failedDownloadTask.put(task.getKey(), task);
                 } else {
                     failedDownloadTask.remove(task.getKey());
@@ -171,27 +568,62 @@ public class FileManager {
         }
     }
 
-    private void updateTask(FileTask task) {
+    /**
+     * 删除取消的下载已收到的部分，打包传输的临时文件是目录。继续时重新分配文件名
+     */
+    private void discardPartial(FileTask task) {
         synchronized (this) {
-            if (pendingUpdateTask.isEmpty() && isAlive.get()) {
+            segmentedDownloads.remove(task.getKey());
+        }
+        String path = task.getFilePath();
+        if (path != null) {
+            File dst = new File(path);
+            File part = getPartFile(dst);
+            if (!Utils.deleteRecursively(part)) {
+                logger.warn("删除未完成的下载失败 " + part);
+            } else if (!dst.exists()) {
+                task.setFilePath(null);
+                downloadNames.release(dst);
+            }
+        }
+        task.setTransferredBytes(0);
+    }
+
+    /**
+     * 传输线程在更新字节计数后调用，进度变化足够大时才通知订阅者，不占用 FileManager 的锁
+     */
+    void reportProgress(FileTask task) {
+        if (task.claimReport(System.currentTimeMillis(), PROGRESS_INTERVAL))
+            updateTask(task);
+    }
+
+    private void updateTask(FileTask task) {
+        pendingUpdateTask.put(task.getKey(), task);
+        if (isAlive.get() && isUpdateScheduled.compareAndSet(false, true)) {
+            try {
                 timer.schedule(new TimerTask() {
                     @Override
                     public void run() {
                         notifyTaskUpdate();
                     }
                 }, 200);
+            } catch (IllegalStateException e) {
+                // 已停止
+                isUpdateScheduled.set(false);
             }
-            pendingUpdateTask.put(task.getKey(), task);
         }
     }
 
+    /**
+     * 同一任务在一个通知周期内的多次更新合并为一次，订阅者收到的是任务的快照
+     */
     private void notifyTaskUpdate() {
-        List<FileTask> tasks;
-        synchronized (this) {
-            tasks = new ArrayList<>(pendingUpdateTask.values());
-        }
-        for (FileTask task : tasks) {
-            UUID userId = task.getKey().getUserId();
+        isUpdateScheduled.set(false);
+        for (FileTask.Key key : new ArrayList<>(pendingUpdateTask.keySet())) {
+            FileTask pending = pendingUpdateTask.remove(key);
+            if (pending == null) continue;
+            FileTask task = pending.copy();
+            UUID userId = key.getUserId();
             List<FileTaskSubscriber> subscribers;
             synchronized (this) {
                 if (!fileTaskSubscribers.containsKey(userId))
@@ -206,12 +638,9 @@ public class FileManager {
                 }
             }
         }
-        synchronized (this) {
-            pendingUpdateTask.clear();
-        }
     }
 
-    private FileSession getOrCreateFileSession(UUID userId) {
+    FileSession getOrCreateFileSession(UUID userId) {
         FileSession session = chatManager.getSessionManager().getAvailableDownloadSessionAndMarkBusy(userId);
         if (session == null) {
             session = createFileClientSession(userId);
@@ -220,19 +649,67 @@ public class FileManager {
     }
 
     private FileSession createFileClientSession(UUID userId) {
+        boolean ranged = !isLegacyPeer(userId);
+        FileSession session = createFileClientSession(userId, ranged);
+        if (session == null) {
+            // 旧版本不认识带能力的类型行，只能整个文件重新下载
+            logger.debug(userId + " 不支持断点续传");
+            markLegacyPeer(userId);
+            session = createFileClientSession(userId, false);
+        }
+        if (session == null)
+            throw new IllegalStateException("状态码为 ERR");
+        return session;
+    }
+
+    private synchronized boolean isLegacyPeer(UUID userId) {
+        return legacyUserIds.contains(userId);
+    }
+
+    private synchronized void markLegacyPeer(UUID userId) {
+        legacyUserIds.add(userId);
+    }
+
+    /**
+     * 对方拒绝握手时返回 null
+     */
+    private FileSession createFileClientSession(UUID userId, boolean ranged) {
         ChatSession chatSession = chatManager.getSessionManager().findChatSessionByUserId(userId);
         Socket socket = null;
         try {
-            socket = new Socket(chatSession.getSocket().getInetAddress(), chatSession.getRemoteServerPort());
+            if (chatSession != null) {
+                socket = new Socket(chatSession.getSocket().getInetAddress(), chatSession.getRemoteServerPort());
+            } else {
+                // 从其他已下载的用户获取文件时不一定有聊天会话
+                OnlineUser onlineUser = chatManager.getOnlineUserManager().findOnlineUserById(userId);
+                if (onlineUser == null)
+                    throw new IllegalStateException("用户不在线 " + userId);
+                socket = new Socket(onlineUser.getHost(), onlineUser.getPort());
+            }
             FileSession session = new FileSession(socket, null, null, true);
             BufferedSink sink = session.getSink();
-            sink.writeUtf8(FileSession.NAME + "\n");
+            sink.writeUtf8(FileSession.NAME + (ranged ? " " + FileSession.CAP_RANGE + " " + FileSession.CAP_DIGEST
+                    + " " + FileSession.CAP_PIPELINE + " " + FileSession.CAP_ARCHIVE
+                    + " " + FileSession.CAP_SWARM + " " + FileSession.CAP_DEFLATE
+                    + " " + FileSession.CAP_CONTROL : "") + "\n");
             sink.writeUtf8(chatManager.getMyself().getId() + "\n");
             sink.flush();
             String status = session.getSource().readUtf8Line();
-            if (!"OK".equals(status)) {
+            if (ranged && "ERR".equals(status)) {
+                Utils.closeQuietly(socket);
+                return null;
+            }
+            if (status == null || !(status.equals("OK") || status.startsWith("OK "))) {
                 throw new IllegalStateException("状态码为 " + status);
             }
+            List<String> capabilities = Arrays.asList(status.split(" "));
+            session.setRanged(ranged && capabilities.contains(FileSession.CAP_RANGE));
+            session.setVerifiable(session.isRanged() && capabilities.contains(FileSession.CAP_DIGEST));
+            session.setPipelined(session.isRanged() && capabilities.contains(FileSession.CAP_PIPELINE));
+            session.setArchivable(session.isRanged() && capabilities.contains(FileSession.CAP_ARCHIVE));
+            session.setSwarmable(session.isRanged() && capabilities.contains(FileSession.CAP_SWARM));
+            session.setCompressible(session.isRanged() && capabilities.contains(FileSession.CAP_DEFLATE));
+            session.setControllable(session.isRanged() && capabilities.contains(FileSession.CAP_CONTROL));
             session.setContextUserId(userId);
             session.setState(Session.State.CONNECTED);
             session.setBusy(true);
@@ -245,166 +722,845 @@ public class FileManager {
         }
     }
 
+    /**
+     * 对方不支持校验或文件不存在时返回 null
+     */
+    private FileDigest fetchDigest(FileSession session, FileTask task) throws IOException {
+        if (!session.isVerifiable()) return null;
+        BufferedSink sink = session.getSink();
+        sink.writeUtf8(FileSession.REQUEST_DIGEST + " " + task.getKey().getResId() + "\n");
+        sink.flush();
+        return readDigest(session, task);
+    }
+
+    /**
+     * 已知文件大小时，大小不符的摘要被丢弃
+     */
+    private FileDigest readDigest(FileSession session, FileTask task) throws IOException {
+        String headerLine = session.getSource().readUtf8Line();
+        if (headerLine == null)
+            throw new EOFException();
+        if (headerLine.startsWith("-"))
+            return null;
+        return FileDigest.read(session.getSource(), headerLine, task.getFileSize());
+    }
+
     private void downloadWorker() {
         logger.debug("文件下载线程开始");
         while (isAlive.get()) {
+            if (downloadPool.tryRetire()) {
+                logger.debug("文件下载线程结束");
+                return;
+            }
             try {
-                busyDownloadWorkerSize.decrementAndGet();
+                downloadPool.onIdle();
                 FileTask task;
                 try {
-                    task = downloadQueue.poll(500, TimeUnit.MILLISECONDS);
+                    task = downloadQueue.take(() -> isAlive.get() && !downloadPool.isOversized());
                 } finally {
                     // 确保每次循环都调用inc
-                    busyDownloadWorkerSize.incrementAndGet();
+                    downloadPool.onBusy();
                 }
                 if (task == null) continue;
-                if (!task.startDownload()) continue;
-                FileSession session;
                 try {
-                    session = getOrCreateFileSession(task.getKey().getUserId());
-                } catch (Exception e) {
-                    logger.debug("获取文件会话失败", e);
-                    downloadQueue.put(task);
-                    continue;
+                    runDownloadTask(task);
+                } finally {
+                    downloadQueue.finish(task);
                 }
-                BufferedSink fileSink = null;
-                try {
-                    File dst = task.getFilePath() != null ? new File(task.getFilePath()) : getDownloadFile(task);
-                    BufferedSink sink = session.getSink();
-                    BufferedSource source = session.getSource();
-                    sink.writeUtf8(task.getKey().getResId() + "\n");
-                    sink.flush();
-                    int chunkSize = 1024;
-                    String sizeLine = source.readUtf8Line();
-                    long fileSize;
-                    if (sizeLine == null) {
-                        // EOF
-                        chatManager.notifySessionClosed(session);
-                        fileSize = -1;
+            } catch (InterruptedException ignored) {
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        downloadPool.removeWorker(true);
+        logger.debug("文件下载线程结束");
+    }
+
+    private void runDownloadTask(FileTask task) {
+        if (!task.startDownload()) return;
+        // 重启前已下载完成的文件
+        if (restoreDownload(task)) return;
+        FileSession session;
+        try {
+            session = getOrCreateFileSession(task.getKey().getUserId());
+        } catch (Exception e) {
+            logger.debug("获取文件会话失败", e);
+            // 重新连上后再下载
+            updateTask(task, FileTask.FAILED, false);
+            return;
+        }
+        if (task.getFileType() == ChatMessage.FileType.BATCH) {
+            downloadArchive(task, session);
+            return;
+        }
+        if (session.isPipelined() && isBatchable(task)) {
+            List<FileTask> tasks = new ArrayList<>();
+            tasks.add(task);
+            for (FileTask other : downloadQueue.takeMore(task.getKey().getUserId(), MAX_BATCH - 1, this::isBatchable)) {
+                if (other.startDownload())
+                    tasks.add(other);
+            }
+            if (tasks.size() > 1) {
+                downloadBatch(tasks, session);
+                return;
+            }
+        }
+        FileDigest digest;
+        try {
+            digest = fetchDigest(session, task);
+        } catch (Exception e) {
+            logger.debug("获取文件摘要失败", e);
+            updateTask(task, FileTask.FAILED, false);
+            chatManager.notifySessionClosed(session);
+            chatManager.getSessionManager().releaseDownloadSession(session);
+            return;
+        }
+        if (digest != null && useLocalCopy(task, digest)) {
+            chatManager.getSessionManager().releaseDownloadSession(session);
+            return;
+        }
+        SegmentedDownload segmented = getSegmentedDownload(task, session);
+        if (segmented != null)
+            downloadSegmented(task, segmented, session, digest);
+        else
+            downloadSingle(task, session, digest);
+    }
+
+    private boolean isBatchable(FileTask task) {
+        long size = task.getFileSize();
+        return size >= 0 && size <= BATCH_FILE_SIZE && task.getFileType() != ChatMessage.FileType.BATCH;
+    }
+
+    /**
+     * 打包的资源先解开到临时目录，全部收到后改名为下载目录下的同名目录。重试时从头接收并覆盖临时目录中已有的文件
+     */
+    private void downloadArchive(FileTask task, FileSession session) {
+        try {
+            if (!session.isArchivable())
+                throw new IOException("对方不支持打包传输");
+            BufferedSink sink = session.getSink();
+            BufferedSource source = session.getSource();
+            sink.writeUtf8(FileSession.REQUEST_ARCHIVE + " " + task.getKey().getResId() + "\n");
+            sink.flush();
+            String sizeLine = source.readUtf8Line();
+            if (sizeLine == null)
+                throw new EOFException();
+            long totalSize = Long.parseLong(sizeLine);
+            if (totalSize < 0) {
+                logger.debug("对方已没有该资源 " + task.getKey().getResId());
+                updateTask(task, FileTask.FAILED, false);
+                chatManager.getSessionManager().releaseDownloadSession(session);
+                return;
+            }
+            File dst = task.getFilePath() != null ? new File(task.getFilePath()) : getDownloadFile(task);
+            File part = getPartFile(dst);
+            part.mkdirs();
+            task.setFilePath(dst.getAbsolutePath());
+            task.setFileSize(totalSize);
+            task.setTransferredBytes(0);
+            updateTask(task, 0f, false);
+            logger.debug("开始接收打包的文件 " + totalSize);
+            BatchArchive.read(source, part, size -> {
+                if (task.isStopRequested())
+                    throw new IOException("已停止");
+                task.addTransferredBytes(size);
+                downloadPool.addDownloadedBytes(size);
+                transferStats.addReceived(size, size);
+                reportProgress(task);
+                downloadLimiter.acquire(session.getContextUserId(), size);
+            });
+            commitPartFile(part, dst);
+            updateTask(task, 1f, true);
+            logger.debug("下载完毕 -> " + dst.getName());
+            chatManager.getSessionManager().releaseDownloadSession(session);
+        } catch (Exception e) {
+            logger.debug("下载失败", e);
+            updateTask(task, isAlive.get() ? FileTask.FAILED : FileTask.CANCELED, false);
+            chatManager.notifySessionClosed(session);
+            chatManager.getSessionManager().releaseDownloadSession(session);
+        }
+    }
+
+    /**
+     * 在一个连接上连续发出所有小文件的请求，再依次读取响应，整批只需一次往返
+     */
+    private void downloadBatch(List<FileTask> tasks, FileSession session) {
+        logger.debug("批量下载 " + tasks.size() + " 个文件");
+        // 还没有结果的任务
+        List<FileTask> remaining = new ArrayList<>(tasks);
+        FileTask current = null;
+        FileTask stopped = null;
+        try {
+            BufferedSink sink = session.getSink();
+            List<FileTask> requests = tasks;
+            List<FileDigest> digests = null;
+            if (session.isVerifiable()) {
+                // 先取全部摘要，本地已有相同内容的不再请求
+                for (FileTask task : tasks) {
+                    sink.writeUtf8(FileSession.REQUEST_DIGEST + " " + task.getKey().getResId() + "\n");
+                }
+                sink.flush();
+                requests = new ArrayList<>();
+                digests = new ArrayList<>();
+                for (FileTask task : tasks) {
+                    FileDigest digest = readDigest(session, task);
+                    if (task.isStopRequested()) {
+                        // 还没有请求内容，不影响连接
+                        remaining.remove(task);
+                        updateTask(task, task.getStopRequest(), false);
+                    } else if (digest != null && useLocalCopy(task, digest)) {
+                        remaining.remove(task);
                     } else {
-                        fileSize = Long.parseLong(sizeLine);
+                        requests.add(task);
+                        digests.add(digest);
                     }
-                    long remainSize = fileSize;
-                    if (remainSize > 0) {
-                        logger.debug("开始下载 " + fileSize);
-                        fileSink = Okio.buffer(Okio.sink(dst));
-                        task.setFilePath(dst.getAbsolutePath());
-                        updateTask(task, 0f, false);
-                        while (remainSize > 0 && isAlive.get() && session.isAlive()) {
-                            long readSize = Math.min(remainSize, chunkSize);
-                            long actual = source.read(fileSink.getBuffer(), readSize);
-                            if (actual == -1) {
-                                // EOF
-                                chatManager.notifySessionClosed(session);
-                                break;
-                            }
-                            fileSink.flush();
-                            remainSize -= actual;
-                            float progress = 1f - (float) remainSize / fileSize;
-                            updateTask(task, progress, false);
-//                            try {
-//                                Thread.sleep(1); // 模拟慢速下载
-//                            } catch (InterruptedException ignored) {
-//                            }
+                }
+            }
+            for (int i = 0; i < requests.size(); i++) {
+                sink.writeUtf8(FileSession.REQUEST_GET + " " + i + " " + requests.get(i).getKey().getResId() + " 0\n");
+            }
+            sink.flush();
+            for (int i = 0; i < requests.size() && isAlive.get(); i++) {
+                current = requests.get(i);
+                boolean finished = receiveBatchItem(current, i, session, digests != null ? digests.get(i) : null);
+                remaining.remove(current);
+                if (!finished) {
+                    stopped = current;
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            // 对方收到取消后也会断开连接
+            if (current != null && current.isStopRequested() && remaining.remove(current))
+                stopped = current;
+            else
+                logger.debug("批量下载失败", e);
+        } finally {
+            // 还有没读完的响应，连接不能再用
+            if (stopped != null || !remaining.isEmpty())
+                chatManager.notifySessionClosed(session);
+            if (stopped != null)
+                updateTask(stopped, stopped.getStopRequest(), false);
+            for (FileTask task : remaining) {
+                if (stopped != null && isAlive.get() && !task.isStopRequested()) {
+                    // 因其他任务停止而中断，重新排队
+                    updateTask(task, FileTask.IDLE, false);
+                    download(task);
+                } else {
+                    updateTask(task, isAlive.get() ? FileTask.FAILED : FileTask.CANCELED, false);
+                }
+            }
+            chatManager.getSessionManager().releaseDownloadSession(session);
+        }
+    }
+
+    /**
+     * 读取一个响应，任务被暂停或取消时返回 false。请求 id 不符时说明响应错位，整个连接不能再用
+     */
+    private boolean receiveBatchItem(FileTask task, int requestId, FileSession session, FileDigest digest) throws IOException {
+        BufferedSource source = session.getSource();
+        String sizeLine = source.readUtf8Line();
+        if (sizeLine == null)
+            throw new EOFException();
+        String[] parts = sizeLine.split(" ");
+        if (!String.valueOf(requestId).equals(parts[0]) || parts.length < 2)
+            throw new IOException("响应错位 " + requestId + " " + sizeLine);
+        long fileSize = Long.parseLong(parts[1]);
+        if (fileSize < 0) {
+            updateTask(task, FileTask.FAILED, false);
+            return true;
+        }
+        TransferCodec.Decoder decoder = parts.length > 3 && FileSession.CAP_DEFLATE.equals(parts[3])
+                ? new TransferCodec.Decoder(source) : null;
+        try {
+            return receiveBatchContent(task, session, digest, fileSize, decoder);
+        } finally {
+            if (decoder != null)
+                decoder.end();
+        }
+    }
+
+    private boolean receiveBatchContent(FileTask task, FileSession session, FileDigest digest, long fileSize,
+                                        TransferCodec.Decoder decoder) throws IOException {
+        BufferedSource source = decoder != null ? decoder.source() : session.getSource();
+        File dst = task.getFilePath() != null ? new File(task.getFilePath()) : getDownloadFile(task);
+        FileDigest.Verifier verifier = digest != null && digest.getFileSize() == fileSize ? digest.verifier(0) : null;
+        task.setFilePath(dst.getAbsolutePath());
+        task.setFileSize(fileSize);
+        task.setTransferredBytes(0);
+        updateTask(task, 0f, false);
+        long remainSize = fileSize;
+        File part = getPartFile(dst);
+        try (BufferedSink fileSink = Okio.buffer(Okio.sink(part))) {
+            byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(1, fileSize))];
+            while (remainSize > 0) {
+                // 剩余内容留在连接中，由调用方关闭连接
+                if (task.isStopRequested())
+                    return false;
+                int actual = source.read(chunk, 0, (int) Math.min(remainSize, chunk.length));
+                if (actual == -1)
+                    throw new EOFException();
+                if (verifier != null)
+                    verifier.update(chunk, 0, actual);
+                fileSink.write(chunk, 0, actual);
+                remainSize -= actual;
+                task.addTransferredBytes(actual);
+                downloadPool.addDownloadedBytes(actual);
+                reportProgress(task);
+                long wireBytes = decoder != null ? decoder.takeWireBytes() : actual;
+                transferStats.addReceived(actual, wireBytes);
+                downloadLimiter.acquire(session.getContextUserId(), wireBytes);
+            }
+        }
+        if (decoder != null)
+            transferStats.addReceived(0, decoder.finish());
+        if (verifier != null && !verifier.getDamagedBlocks().isEmpty()) {
+            // 后面的响应已经在路上，不能在这个连接上重新获取，稍后重新下载
+            logger.debug("校验失败 " + dst);
+            updateTask(task, FileTask.FAILED, false);
+            return true;
+        }
+        commitPartFile(part, dst);
+        if (verifier != null)
+            contentIndex.put(digest.getContentHash(), dst);
+        updateTask(task, 1f, true);
+        logger.debug("下载完毕 -> " + dst.getName());
+        return true;
+    }
+
+    /**
+     * 本地已有相同内容的文件时直接完成任务，不再传输
+     */
+    private boolean useLocalCopy(FileTask task, FileDigest digest) {
+        File local = contentIndex.find(digest.getContentHash());
+        if (local == null) return false;
+        String partPath = task.getFilePath();
+        synchronized (this) {
+            segmentedDownloads.remove(task.getKey());
+        }
+        if (partPath != null)
+            getPartFile(new File(partPath)).delete();
+        logger.debug("本地已有相同文件 " + local);
+        task.setFilePath(local.getAbsolutePath());
+        task.setFileSize(local.length());
+        task.setTransferredBytes(local.length());
+        updateTask(task, 1f, true);
+        return true;
+    }
+
+    private void downloadSingle(FileTask task, FileSession session, FileDigest digest) {
+        FileChannel channel = null;
+        TransferCodec.Decoder decoder = null;
+        try {
+            // 对方确认有该资源后才分配文件名，请求失败不会占用名称
+            File dst = task.getFilePath() != null ? new File(task.getFilePath()) : null;
+            File part = dst != null ? getPartFile(dst) : null;
+            BufferedSink sink = session.getSink();
+            BufferedSource source = session.getSource();
+            // 上次中断时临时文件已按大小分配好，已写入的位置以任务的进度为准，只需补齐剩余部分
+            long offset = session.isRanged() && part != null && part.length() == task.getFileSize()
+                    ? task.getTransferredBytes() : 0;
+            if (digest != null) {
+                // 从块的起始位置开始才能校验
+                offset -= offset % FileDigest.BLOCK_SIZE;
+            }
+            sink.writeUtf8(task.getKey().getResId() + (session.isRanged() ? " " + offset : "") + "\n");
+            sink.flush();
+            String sizeLine = source.readUtf8Line();
+            long fileSize;
+            long start = 0;
+            if (sizeLine == null) {
+                // EOF
+                chatManager.notifySessionClosed(session);
+                fileSize = -1;
+            } else {
+                String[] parts = sizeLine.split(" ");
+                fileSize = Long.parseLong(parts[0]);
+                if (parts.length > 1)
+                    start = Long.parseLong(parts[1]);
+                if (parts.length > 2 && FileSession.CAP_DEFLATE.equals(parts[2]))
+                    decoder = new TransferCodec.Decoder(source);
+            }
+            long remainSize = fileSize < 0 ? fileSize : fileSize - start;
+            FileDigest.Verifier verifier = null;
+            if (digest != null && digest.getFileSize() == fileSize && start % FileDigest.BLOCK_SIZE == 0)
+                verifier = digest.verifier(start);
+            if (fileSize >= 0) {
+                if (dst == null) {
+                    dst = getDownloadFile(task);
+                    part = getPartFile(dst);
+                    task.setFilePath(dst.getAbsolutePath());
+                }
+                channel = openPartFile(part, fileSize);
+            }
+            if (remainSize > 0) {
+                logger.debug("开始下载 " + fileSize + " 起始位置 " + start);
+                task.setFileSize(fileSize);
+                task.setTransferredBytes(start);
+                updateTask(task, 0f, false);
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(WRITE_BUFFER_SIZE, remainSize));
+                // 压缩传输时进度仍按解压后的字节计算
+                BufferedSource in = decoder != null ? decoder.source() : source;
+                // 服务端可能从更早的位置开始发送，按位置写入，不必截断
+                long position = start;
+                while (remainSize > 0 && isAlive.get() && session.isAlive() && !task.isStopRequested()) {
+                    // 攒满缓冲区再写入，写入次数更少
+                    buffer.clear();
+                    buffer.limit((int) Math.min(remainSize, buffer.capacity()));
+                    boolean isEof = false;
+                    while (buffer.hasRemaining()) {
+                        int actual = in.read(buffer);
+                        if (actual == -1) {
+                            isEof = true;
+                            break;
                         }
+                        long wireBytes = decoder != null ? decoder.takeWireBytes() : actual;
+                        transferStats.addReceived(actual, wireBytes);
+                        downloadLimiter.acquire(session.getContextUserId(), wireBytes);
                     }
-                    if (remainSize == 0) {
-                        updateTask(task, 1f, true);
-                        logger.debug("下载完毕 -> " + dst.getName());
+                    buffer.flip();
+                    int size = buffer.remaining();
+                    if (verifier != null) {
+                        verifier.update(buffer);
+                        buffer.rewind();
                     }
-                    else {
-                        updateTask(task, FileTask.CANCELED, false);
-                        logger.debug("下载取消");
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
                     }
-                } catch (Exception e) {
-                    logger.debug("下载失败", e);
-                    updateTask(task, FileTask.FAILED, false);
+                    remainSize -= size;
+                    task.addTransferredBytes(size);
+                    downloadPool.addDownloadedBytes(size);
+                    reportProgress(task);
+                    if (isEof) {
+                        chatManager.notifySessionClosed(session);
+                        break;
+                    }
+                }
+            }
+            if (decoder != null && remainSize == 0)
+                transferStats.addReceived(0, decoder.finish());
+            if (remainSize == 0 && verifier != null && !verifier.getDamagedBlocks().isEmpty()) {
+                if (!SegmentedDownload.repairBlocks(this, session, task.getKey().getResId(), digest, channel,
+                        verifier.getDamagedBlocks()))
+                    throw new IOException("校验失败 " + dst);
+            }
+            if (remainSize == 0) {
+                channel.close();
+                commitPartFile(part, dst);
+                if (verifier != null)
+                    contentIndex.put(digest.getContentHash(), dst);
+                updateTask(task, 1f, true);
+                logger.debug("下载完毕 -> " + dst.getName());
+            }
+            else {
+                // 还有没读完的数据，连接不能再用
+                if (remainSize > 0)
                     chatManager.notifySessionClosed(session);
-                } finally {
-                    session.setBusy(false);
-                    Utils.closeQuietly(fileSink);
+                // 取消时要删除临时文件，先关闭
+                Utils.closeQuietly(channel);
+                updateTask(task, FileTask.CANCELED, false);
+                logger.debug("下载取消");
+            }
+        } catch (Exception e) {
+            logger.debug("下载失败", e);
+            Utils.closeQuietly(channel);
+            updateTask(task, FileTask.FAILED, false);
+            chatManager.notifySessionClosed(session);
+        } finally {
+            chatManager.getSessionManager().releaseDownloadSession(session);
+            Utils.closeQuietly(channel);
+            if (decoder != null)
+                decoder.end();
+        }
+    }
+
+    /**
+     * 对方支持断点续传且文件足够大时分块下载。已经开始分块下载的任务重试时继续分块，
+     * 因为预分配的目标文件长度不能用来判断已下载的位置
+     */
+    private SegmentedDownload getSegmentedDownload(FileTask task, FileSession session) {
+        ChatConfig config = chatManager.getConfig();
+        synchronized (this) {
+            if (!session.isRanged()) {
+                // 只能整个文件重新下载
+                segmentedDownloads.remove(task.getKey());
+                return null;
+            }
+            SegmentedDownload segmented = segmentedDownloads.get(task.getKey());
+            if (segmented == null && task.getFileSize() >= config.getSegmentThreshold()) {
+                // 按摘要的块对齐
+                long segmentSize = (config.getSegmentSize() + FileDigest.BLOCK_SIZE - 1)
+                        / FileDigest.BLOCK_SIZE * FileDigest.BLOCK_SIZE;
+                segmented = new SegmentedDownload(this, chatManager, task, task.getFileSize(), segmentSize);
+                segmentedDownloads.put(task.getKey(), segmented);
+            }
+            return segmented;
+        }
+    }
+
+    private void downloadSegmented(FileTask task, SegmentedDownload segmented, FileSession session, FileDigest digest) {
+        boolean handedOver = false;
+        try {
+            File dst = task.getFilePath() != null ? new File(task.getFilePath()) : getDownloadFile(task);
+            task.setFilePath(dst.getAbsolutePath());
+            updateTask(task, 0f, false);
+            if (segmented.getDigest() == null)
+                segmented.setDigest(digest);
+            FileSession first = session;
+            // 只有能校验时才从其他用户获取
+            if (session.isSwarmable() && segmented.getDigest() != null) {
+                segmented.setHolders(fetchHolders(session, task.getKey().getResId()));
+                FileSession holderSession = segmented.openHolderSession();
+                if (holderSession != null) {
+                    chatManager.getSessionManager().releaseDownloadSession(session);
+                    first = holderSession;
                 }
-            } catch (InterruptedException ignored) {
+            }
+            logger.debug("开始分块下载 " + segmented.getFileSize());
+            // session 由分块下载负责释放
+            handedOver = true;
+            File part = getPartFile(dst);
+            if (segmented.run(part, first, chatManager.getConfig().getMaxSegmentStreams())) {
+                synchronized (this) {
+                    segmentedDownloads.remove(task.getKey());
+                }
+                commitPartFile(part, dst);
+                if (segmented.getDigest() != null) {
+                    contentIndex.put(segmented.getDigest().getContentHash(), dst);
+                    announceHolder(task);
+                }
+                updateTask(task, 1f, true);
+                logger.debug("下载完毕 -> " + dst.getName());
+            } else if (segmented.isPaused() && isAlive.get() && !task.isStopRequested()) {
+                // 让位给优先级更高的任务，稍后从已完成的块继续
+                logger.debug("分块下载让出 -> " + dst.getName());
+                updateTask(task, FileTask.IDLE, false);
+                download(task);
+            } else {
+                updateTask(task, isAlive.get() ? FileTask.FAILED : FileTask.CANCELED, false);
+                logger.debug("分块下载中断");
+            }
+        } catch (Exception e) {
+            logger.debug("下载失败", e);
+            updateTask(task, FileTask.FAILED, false);
+            if (!handedOver)
+                chatManager.notifySessionClosed(session);
+        } finally {
+            if (!handedOver)
+                chatManager.getSessionManager().releaseDownloadSession(session);
+        }
+    }
+
+    /**
+     * 向分享者询问还有哪些用户已有该文件
+     */
+    private List<UUID> fetchHolders(FileSession session, UUID resId) throws IOException {
+        BufferedSink sink = session.getSink();
+        sink.writeUtf8(FileSession.REQUEST_PEERS + " " + resId + "\n");
+        sink.flush();
+        String line = session.getSource().readUtf8Line();
+        if (line == null)
+            throw new EOFException();
+        List<UUID> holders = new ArrayList<>();
+        for (String part : line.split(" ")) {
+            if (part.isEmpty()) continue;
+            UUID userId = UUID.fromString(part);
+            if (!userId.equals(chatManager.getMyself().getId()))
+                holders.add(userId);
+        }
+        return holders;
+    }
+
+    /**
+     * 告知分享者自己已下载完成，之后的下载者可以从这里获取
+     */
+    private void announceHolder(FileTask task) {
+        // 先登记，分享者介绍来的用户请求时已能响应
+        synchronized (this) {
+            announcedDownloads.add(task.getKey().getResId());
+        }
+        Runnable announce = () -> {
+            FileSession session;
+            try {
+                session = getOrCreateFileSession(task.getKey().getUserId());
             } catch (Exception e) {
-                e.printStackTrace();
+                return;
             }
+            try {
+                if (session.isSwarmable()) {
+                    session.getSink().writeUtf8(FileSession.REQUEST_HAVE + " " + task.getKey().getResId() + "\n");
+                    session.getSink().flush();
+                }
+            } catch (IOException e) {
+                chatManager.notifySessionClosed(session);
+            } finally {
+                chatManager.getSessionManager().releaseDownloadSession(session);
+            }
+        };
+        try {
+            chatManager.getExecutor().execute("file-have", announce);
+        } catch (RejectedExecutionException ignored) {
         }
-        downloadWorkerSize.decrementAndGet();
-        logger.debug("文件下载线程结束");
     }
 
-    private synchronized FileTask getOrCreateServerTask(UUID userId, UUID resId, File file) {
+    private synchronized FileTask getOrCreateServerTask(UUID userId, UUID resId, String fileName) {
         FileTask.Key key = new FileTask.Key(false, userId, resId);
         if (fileTaskMap.containsKey(key))
             return fileTaskMap.get(key);
-        FileTask task = new FileTask(key, file.getName());
+        FileTask task = new FileTask(key, fileName);
         fileTaskMap.put(key, task);
         return task;
     }
 
     private void serverWorker(FileSession session) {
-        BufferedSink sink = session.getSink();
-        BufferedSource source = session.getSource();
         logger.debug("文件服务线程开始 " + session);
         while (isAlive.get() && session.isAlive()) {
-            FileTask task = null;
-            BufferedSource fileSource = null;
-            try {
-                session.setBusy(false);
-                String resIdLine;
-                try {
-                    resIdLine = source.readUtf8Line();
-                } finally {
-                    session.setBusy(true);
-                }
-                logger.debug("restId " + resIdLine + source.isOpen());
-                if (resIdLine == null) {
-                    // EOF
-                    chatManager.notifySessionClosed(session);
-                    break;
+            if (!serveRequest(session)) break;
+        }
+        session.setBusy(false);
+        logger.debug("文件服务线程结束" + session);
+    }
+
+    /**
+     * NIO 模式下空闲的文件会话由事件循环看管，收到请求后才占用线程
+     */
+    private void awaitRequest(EventLoopGroup group, FileSession session) {
+        session.setBusy(false);
+        Runnable task = () -> {
+            do {
+                if (!isAlive.get() || !serveRequest(session)) {
+                    session.setBusy(false);
+                    return;
                 }
-                UUID resId = UUID.fromString(resIdLine);
+            } while (session.getSource().getBuffer().size() > 0);
+            if (isAlive.get() && session.isAlive())
+                awaitRequest(group, session);
+        };
+        Runnable onReadable = () -> {
+            try {
+                chatManager.getExecutor().execute("file-server", task);
+            } catch (RejectedExecutionException e) {
+                chatManager.notifySessionClosed(session);
+            }
+        };
+        if (session.getSource().getBuffer().size() > 0) {
+            // 握手时已经连同请求一起读入
+            group.runBlocking(session.getSocket().getChannel(), onReadable);
+            return;
+        }
+        group.awaitReadable(session.getSocket().getChannel(), onReadable);
+    }
+
+    /**
+     * 先回复内容的总大小，再连续写出所有文件
+     */
+    private void serveArchive(FileSession session, UUID resId) throws IOException {
+        BufferedSink sink = session.getSink();
+        List<File> files = getSharedBatch(resId);
+        if (files == null) {
+            logger.warn("不存在资源" + resId);
+            sink.writeUtf8(-1 + "\n");
+            sink.flush();
+            return;
+        }
+        UUID userId = session.getContextUserId();
+        FileTask task = getOrCreateServerTask(userId, resId, BatchArchive.getName(files));
+        if (task.isStopRequested()) {
+            sink.writeUtf8(-1 + "\n");
+            sink.flush();
+            return;
+        }
+        try {
+            long totalSize = BatchArchive.getTotalSize(files);
+            task.setFileSize(totalSize);
+            task.setTransferredBytes(0);
+            updateTask(task, 0f, false);
+            sink.writeUtf8(totalSize + "\n");
+            logger.debug("开始发送打包的文件 " + files.size() + " 项 -> " + userId);
+            BatchArchive.write(files, sink, size -> {
+                task.addTransferredBytes(size);
+                transferStats.addSent(size, size);
+                reportProgress(task);
+                uploadLimiter.acquire(userId, size);
+            }, () -> isAlive.get() && !task.isStopRequested());
+            updateTask(task, 1f, true);
+        } catch (IOException e) {
+            updateTask(task, isAlive.get() ? FileTask.FAILED : FileTask.CANCELED, false);
+            throw e;
+        }
+    }
+
+    /**
+     * 处理一个文件请求，会话不可再用时返回 false
+     */
+    private boolean serveRequest(FileSession session) {
+        BufferedSink sink = session.getSink();
+        BufferedSource source = session.getSource();
+        FileTask task = null;
+        BufferedSource fileSource = null;
+        try {
+            session.setBusy(false);
+            String resIdLine;
+            try {
+                resIdLine = source.readUtf8Line();
+            } finally {
+                session.setBusy(true);
+            }
+            logger.debug("restId " + resIdLine + source.isOpen());
+            if (resIdLine == null) {
+                // EOF
+                chatManager.notifySessionClosed(session);
+                return false;
+            }
+            String[] parts = resIdLine.split(" ");
+            if (session.isVerifiable() && FileSession.REQUEST_DIGEST.equals(parts[0])) {
+                UUID resId = UUID.fromString(parts[1]);
                 File file = getSharedFile(resId);
-                if (file == null || !file.exists()) {
-                    logger.warn("不存在文件" + resId);
+                FileDigest digest = file == null || !file.exists() ? null : getFileDigest(resId, file);
+                if (digest == null)
                     sink.writeUtf8(-1 + "\n");
-                    sink.flush();
-                    continue;
-                }
-                task = getOrCreateServerTask(session.getContextUserId(), resId, file);
-                updateTask(task, 0f, false);
-                long fileSize = file.length();
-                sink.writeUtf8(fileSize + "\n");
+                else
+                    digest.write(sink);
+                sink.flush();
+                return true;
+            }
+            if (session.isSwarmable() && FileSession.REQUEST_HAVE.equals(parts[0])) {
+                UUID resId = UUID.fromString(parts[1]);
+                if (getSharedFile(resId) != null)
+                    addHolder(resId, session.getContextUserId());
+                return true;
+            }
+            if (session.isSwarmable() && FileSession.REQUEST_PEERS.equals(parts[0])) {
+                UUID resId = UUID.fromString(parts[1]);
+                // 只为自己分享的资源介绍下载者
+                List<UUID> holders = getSharedFile(resId) != null
+                        ? getHolders(resId, session.getContextUserId()) : Collections.emptyList();
+                sink.writeUtf8(holders.stream().map(UUID::toString).collect(Collectors.joining(" ")) + "\n");
+                sink.flush();
+                return true;
+            }
+            if (session.isArchivable() && FileSession.REQUEST_ARCHIVE.equals(parts[0])) {
+                serveArchive(session, UUID.fromString(parts[1]));
+                return true;
+            }
+            if (session.isControllable() && (FileSession.REQUEST_PAUSE.equals(parts[0])
+                    || FileSession.REQUEST_RESUME.equals(parts[0]) || FileSession.REQUEST_CANCEL.equals(parts[0]))) {
+                onRemoteControl(session.getContextUserId(), parts[0], UUID.fromString(parts[1]));
+                sink.writeUtf8("OK\n");
                 sink.flush();
-                long remainSize = fileSize;
-                int chunkSize = 1024;
+                return true;
+            }
+            // 连续请求时响应行以请求 id 开头
+            String responsePrefix = "";
+            if (session.isPipelined() && FileSession.REQUEST_GET.equals(parts[0])) {
+                responsePrefix = parts[1] + " ";
+                parts = Arrays.copyOfRange(parts, 2, parts.length);
+            }
+            UUID resId = UUID.fromString(parts[0]);
+            long offset = session.isRanged() && parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+            // 分块下载时只请求一段
+            long length = session.isRanged() && parts.length > 2 ? Long.parseLong(parts[2]) : -1;
+            File file = getSharedFile(resId);
+            if (file == null || !file.exists()) {
+                logger.warn("不存在文件" + resId);
+                sink.writeUtf8(responsePrefix + -1 + "\n");
+                sink.flush();
+                return true;
+            }
+            task = getOrCreateServerTask(session.getContextUserId(), resId, file.getName());
+            if (task.isStopRequested()) {
+                // 暂停或取消后不再发送，直到继续
+                task = null;
+                sink.writeUtf8(responsePrefix + -1 + "\n");
+                sink.flush();
+                return true;
+            }
+            long fileSize = file.length();
+            if (offset < 0 || offset > fileSize) {
+                // 文件已变化，从头发送
+                offset = 0;
+            }
+            task.setFileSize(fileSize);
+            if (length < 0 || task.isDone()) {
+                // 新的一次发送。单连接从续传位置开始计算，分块请求从 0 开始累加
+                task.setTransferredBytes(length < 0 ? offset : 0);
+            }
+            updateTask(task, 0f, false);
+            long remainSize = length < 0 ? fileSize - offset : Math.min(length, fileSize - offset);
+            long endSize = fileSize - offset - remainSize;
+            boolean compressed = session.isCompressible() && TransferCodec.shouldCompress(file, offset, remainSize);
+            sink.writeUtf8(responsePrefix + fileSize + (session.isRanged() ? " " + offset : "")
+                    + (compressed ? " " + FileSession.CAP_DEFLATE : "") + "\n");
+            sink.flush();
+            logger.debug("开始发送文件 " + file + " -> " + session.getContextUserId() + (compressed ? " 压缩" : ""));
+            SocketChannel channel = session.getSocket().getChannel();
+            UUID userId = session.getContextUserId();
+            if (compressed) {
+                // 压缩后无法由内核直接发送，限速按实际发出的字节计算
                 fileSource = Okio.buffer(Okio.source(file));
-                logger.debug("开始发送文件 " + file + " -> " + session.getContextUserId());
-                while (remainSize > 0 && isAlive.get()) {
-                    long writeSize = Math.min(remainSize, chunkSize);
+                fileSource.skip(offset);
+                FileTask serverTask = task;
+                TransferCodec.write(fileSource, remainSize, sink, (bytes, wireBytes) -> {
+                    serverTask.addTransferredBytes(bytes);
+                    transferStats.addSent(bytes, wireBytes);
+                    reportProgress(serverTask);
+                    uploadLimiter.acquire(userId, wireBytes);
+                }, () -> isAlive.get() && !serverTask.isStopRequested());
+                sink.flush();
+                remainSize = 0;
+            } else if (channel != null && channel.isBlocking()) {
+                // 只有 NIO 模式接受的连接有通道，处理请求前已由 awaitReadable 或 runBlocking 切回阻塞模式；
+                // 阻塞模式的连接没有通道，走下面的 okio 路径。
+                // 由内核直接把文件写入套接字，不经过用户态缓冲。限速时每次只发一小段，避免突发
+                long transferSize = uploadLimiter.isLimited(userId) ? CHUNK_SIZE : TRANSFER_SIZE;
+                try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    while (remainSize > 0 && isAlive.get() && !task.isStopRequested()) {
+                        long size = Math.min(remainSize, transferSize);
+                        uploadLimiter.acquire(userId, size);
+                        size = fileChannel.transferTo(fileSize - endSize - remainSize, size, channel);
+                        if (size <= 0)
+                            throw new EOFException("文件长度已变化 " + file);
+                        remainSize -= size;
+                        task.addTransferredBytes(size);
+                        transferStats.addSent(size, size);
+                        reportProgress(task);
+                    }
+                }
+            } else {
+                fileSource = Okio.buffer(Okio.source(file));
+                fileSource.skip(offset);
+                while (remainSize > 0 && isAlive.get() && !task.isStopRequested()) {
+                    long writeSize = Math.min(remainSize, CHUNK_SIZE);
+                    uploadLimiter.acquire(userId, writeSize);
                     sink.write(fileSource, writeSize);
-                    sink.flush();
                     remainSize -= writeSize;
-                    float progress = 1f - (float) remainSize / fileSize;
-                    updateTask(task, progress, false);
-                }
-                if (remainSize == 0)
-                    updateTask(task, 1f, true);
-                else
-                    updateTask(task, FileTask.CANCELED, false);
-                logger.debug("发送文件成功");
-            } catch (IOException e) {
-                if (session.isAlive())
-                    logger.debug("文件服务出错", e);
-                if (task != null) {
-                    updateTask(task, FileTask.FAILED, false);
+                    task.addTransferredBytes(writeSize);
+                    transferStats.addSent(writeSize, writeSize);
+                    reportProgress(task);
                 }
+                sink.flush();
+            }
+            if (remainSize > 0) {
+                // 响应没有发完，连接不能再用
+                updateTask(task, FileTask.CANCELED, false);
                 chatManager.notifySessionClosed(session);
-            } finally {
-                Utils.closeQuietly(fileSource);
+                return false;
+            } else if (task.getTransferredBytes() >= fileSize)
+                updateTask(task, 1f, true);
+            else
+                reportProgress(task);
+            logger.debug("发送文件成功");
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            if (session.isAlive())
+                logger.debug("文件服务出错", e);
+            if (task != null) {
+                updateTask(task, FileTask.FAILED, false);
             }
+            chatManager.notifySessionClosed(session);
+            return false;
+        } finally {
+            Utils.closeQuietly(fileSource);
         }
-        session.setBusy(false);
-        logger.debug("文件服务线程结束" + session);
     }
 }
@@ -0,0 +1,70 @@
+package cn.lai.jchat.chat;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+import java.io.IOException;
+
+/**
+ * 聊天会话的二进制分帧：4 字节负载长度 + 1 字节类型 + 负载，替代 base64 文本行
+ */
+public class FrameCodec {
+    public static final byte TYPE_MESSAGE = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    public static class Frame {
+        private final byte type;
+        private final Buffer payload;
+
+        public Frame(byte type, Buffer payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public Buffer getPayload() {
+            return payload;
+        }
+    }
+
+    /**
+     * 负载会被整体移动到 sink 中，调用后 payload 为空
+     */
+    public static void write(BufferedSink sink, byte type, Buffer payload) throws IOException {
+        long size = payload.size();
+        if (size > MAX_FRAME_SIZE)
+            throw new IOException("帧过大 " + size);
+        sink.writeInt((int) size);
+        sink.writeByte(type);
+        sink.write(payload, size);
+    }
+
+    public static Frame read(BufferedSource source) throws IOException {
+        int size = checkSize(source.readInt());
+        byte type = source.readByte();
+        Buffer payload = new Buffer();
+        source.readFully(payload, size);
+        return new Frame(type, payload);
+    }
+
+    /**
+     * 从已收到的数据中取出一个完整帧，数据不够时返回 null
+     */
+    public static Frame poll(Buffer buffer) throws IOException {
+        if (buffer.size() < HEADER_SIZE) return null;
+        int size = checkSize(buffer.peek().readInt());
+        if (buffer.size() < HEADER_SIZE + (long) size) return null;
+        return read(buffer);
+    }
+
+    private static int checkSize(int size) throws IOException {
+        if (size < 0 || size > MAX_FRAME_SIZE)
+            throw new IOException("帧长度错误 " + size);
+        return size;
+    }
+}
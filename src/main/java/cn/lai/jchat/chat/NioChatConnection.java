@@ -0,0 +1,144 @@
+package cn.lai.jchat.chat;
+
+import cn.lai.jchat.model.ChatMessage;
+import cn.lai.jchat.model.ChatSession;
+import cn.lai.jchat.model.Session;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+
+/**
+ * NIO 模式下的聊天会话，收发都由事件循环驱动，替代每个会话的收信和发信线程
+ */
+public class NioChatConnection extends NioConnection {
+    private final ChatManager chatManager;
+    private final ChatSession session;
+    // 已写入 outbound 但还没交给内核的消息
+    private final List<ChatMessage> pendingMessages = new ArrayList<>();
+    private boolean isClosed = false;
+    private final Logger logger = LogManager.getLogger(getClass().getSimpleName());
+
+    public NioChatConnection(EventLoop loop, SocketChannel channel, ChatManager chatManager, ChatSession session) {
+        super(loop, channel);
+        this.chatManager = chatManager;
+        this.session = session;
+    }
+
+    void start() {
+        loop.execute(this::doStart);
+    }
+
+    private void doStart() {
+        try {
+            // 握手时可能多读了数据
+            inbound.writeAll(session.getSource().getBuffer());
+            register();
+            logger.debug("收发循环(NIO) " + session.getContextUserId());
+            onInbound();
+            drainQueue();
+        } catch (Exception e) {
+            onError(key, e);
+        }
+    }
+
+    public void requestSend() {
+        loop.execute(() -> {
+            try {
+                drainQueue();
+            } catch (Exception e) {
+                onError(key, e);
+            }
+        });
+    }
+
+    public void close() {
+        loop.execute(this::failPendingMessages);
+    }
+
+    private void drainQueue() throws IOException {
+        // 注册前的发送请求由 doStart 统一处理
+        if (isClosed || key == null || !session.isAlive()) return;
+        ChatClient chatClient = chatManager.getChatClient();
+        WakeableQueue<ChatMessage> queue = chatClient.getChatMessageQueue(session.getContextUserId());
+        if (queue == null) return;
+        long maxBatchBytes = chatManager.getConfig().getMaxBatchBytes();
+        ChatMessage message;
+        // 超出批次大小的消息等这一批写完后再取，避免 outbound 无限增长
+        while (outbound.size() < maxBatchBytes && (message = queue.poll()) != null) {
+            try {
+                chatClient.writeMessage(session, chatClient.encodeMessage(session, message), outbound);
+            } catch (IOException e) {
+                chatClient.onMessageFailed(session, message);
+                continue;
+            }
+            logger.debug("发送 " + message + " -> " + session.getContextUserId());
+            pendingMessages.add(message);
+        }
+        if (hasPendingOutbound()) {
+            session.setBusy(true);
+            flush();
+        }
+    }
+
+    @Override
+    protected void onInbound() throws IOException {
+        ChatClient chatClient = chatManager.getChatClient();
+        while (!isClosed) {
+            try {
+                if (session.isFramed()) {
+                    FrameCodec.Frame frame = FrameCodec.poll(inbound);
+                    if (frame == null) break;
+                    chatClient.onFrameReceived(session, frame);
+                } else {
+                    long end = inbound.indexOf((byte) '\n');
+                    if (end == -1) break;
+                    String line = inbound.readUtf8(end);
+                    inbound.skip(1);
+                    chatClient.onLineReceived(session, line);
+                }
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    protected void onFlushed() {
+        session.setUpdateTime(new Date());
+        session.setBusy(false);
+        if (pendingMessages.isEmpty()) return;
+        List<ChatMessage> messages = new ArrayList<>(pendingMessages);
+        pendingMessages.clear();
+        for (ChatMessage message : messages) {
+            chatManager.getChatClient().onMessageSent(session, message);
+        }
+        requestSend();
+    }
+
+    private void failPendingMessages() {
+        isClosed = true;
+        session.setBusy(false);
+        List<ChatMessage> messages = new ArrayList<>(pendingMessages);
+        pendingMessages.clear();
+        for (ChatMessage message : messages) {
+            chatManager.getChatClient().onMessageFailed(session, message);
+        }
+    }
+
+    @Override
+    public void onError(SelectionKey key, Exception e) {
+        if (session.getState() != Session.State.CLOSED) {
+            logger.debug("连接已断开", e);
+        }
+        failPendingMessages();
+        chatManager.notifySessionClosed(session);
+    }
+}
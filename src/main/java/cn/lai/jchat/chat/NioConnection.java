@@ -0,0 +1,90 @@
+package cn.lai.jchat.chat;
+
+import okio.Buffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 非阻塞连接的读写缓冲，只在所属的 {@link EventLoop} 线程内访问
+ */
+public abstract class NioConnection implements EventLoop.Handler {
+    private static final int MAX_READS_PER_EVENT = 16;
+    protected final EventLoop loop;
+    protected final SocketChannel channel;
+    protected final Buffer inbound = new Buffer();
+    protected Buffer outbound = new Buffer();
+    protected SelectionKey key;
+
+    protected NioConnection(EventLoop loop, SocketChannel channel) {
+        this.loop = loop;
+        this.channel = channel;
+    }
+
+    public void register() throws IOException {
+        key = loop.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isWritable()) {
+            flush();
+        }
+        if (key.isValid() && key.isReadable()) {
+            read();
+            onInbound();
+        }
+    }
+
+    /**
+     * 收到数据后解析 {@link #inbound}
+     */
+    protected abstract void onInbound() throws IOException;
+
+    /**
+     * {@link #outbound} 全部写出后调用
+     */
+    protected void onFlushed() throws IOException {
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = loop.getReadBuffer();
+        for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n == -1) throw new EOFException();
+            if (n == 0) break;
+            buffer.flip();
+            inbound.write(buffer);
+        }
+    }
+
+    protected void flush() throws IOException {
+        ByteBuffer buffer = loop.getReadBuffer();
+        while (outbound.size() > 0) {
+            buffer.clear();
+            outbound.read(buffer);
+            buffer.flip();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                // 套接字缓冲已满，把没写完的部分放回队头，等待可写
+                Buffer rest = new Buffer();
+                rest.write(buffer);
+                rest.writeAll(outbound);
+                outbound = rest;
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0)
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        onFlushed();
+    }
+
+    public boolean hasPendingOutbound() {
+        return outbound.size() > 0;
+    }
+}
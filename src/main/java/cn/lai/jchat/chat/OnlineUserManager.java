@@ -39,6 +39,9 @@ public class OnlineUserManager {
 
     public synchronized Buffer getUserContent() throws IOException {
         if (myself == null) return null;
+        ChatConfig config = chatManager.getConfig();
+        if (config != null && config.isCompactBeaconEnabled())
+            return CompactCodec.serialize(myself);
         return ObjectHelper.serialize(myself);
     }
 
@@ -278,7 +281,7 @@ public class OnlineUserManager {
 
     private void onContentReceived(Buffer buffer, InetAddress address) {
         try {
-            OnlineUser onlineUser = (OnlineUser) ObjectHelper.deserialize(buffer);
+            OnlineUser onlineUser = (OnlineUser) CompactCodec.deserialize(buffer);
             onlineUser.setHost(address.getHostAddress());
             addUser(onlineUser);
         } catch (Exception e) {
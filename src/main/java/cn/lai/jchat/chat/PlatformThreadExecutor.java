@@ -0,0 +1,41 @@
+package cn.lai.jchat.chat;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 不支持虚拟线程时使用，空闲线程会被复用，总数有上限。
+ * 收发循环会长期占用线程，不能排队等待，超出上限直接拒绝
+ */
+class PlatformThreadExecutor extends TaskExecutor {
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private final ThreadPoolExecutor pool;
+
+    PlatformThreadExecutor(int maxThreads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        pool = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> new Thread(r, "worker-" + threadNumber.incrementAndGet()));
+    }
+
+    @Override
+    protected void doExecute(String name, Runnable task) {
+        pool.execute(() -> {
+            Thread thread = Thread.currentThread();
+            String oldName = thread.getName();
+            thread.setName(name);
+            try {
+                task.run();
+            } finally {
+                thread.setName(oldName);
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        pool.shutdown();
+    }
+}
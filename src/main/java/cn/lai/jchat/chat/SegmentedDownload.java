@@ -0,0 +1,402 @@
+package cn.lai.jchat.chat;
+
+import cn.lai.jchat.Utils;
+import cn.lai.jchat.model.FileSession;
+import cn.lai.jchat.model.FileTask;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 大文件分块并发下载。临时文件预先分配好大小，多个文件会话各自领取未完成的块并写入对应位置。
+ * 已完成的块会被记录，失败后重试只下载缺失的块
+ */
+class SegmentedDownload {
+    private static final long PROGRESS_INTERVAL = 100;
+    private static final long ADJUST_INTERVAL = 1000;
+    private static final int INITIAL_STREAMS = 2;
+    // 增加连接后吞吐提升不到该比例就不再增加
+    private static final double MIN_GAIN = 1.1;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_REPAIR_ROUNDS = 3;
+    private final FileManager fileManager;
+    private final ChatManager chatManager;
+    private final FileTask task;
+    private final long fileSize;
+    private final long segmentSize;
+    private final int segmentCount;
+    private final BitSet doneSegments = new BitSet();
+    private final BitSet claimedSegments = new BitSet();
+    private int activeStreams = 0;
+    private FileChannel fileChannel;
+    private FileDigest digest;
+    private boolean isPaused;
+    // 已下载完成的其他用户，优先从他们获取，减轻分享者的负担
+    private final List<UUID> holders = new ArrayList<>();
+    private int nextHolder = 0;
+    private static final Logger logger = LogManager.getLogger(SegmentedDownload.class.getSimpleName());
+
+    SegmentedDownload(FileManager fileManager, ChatManager chatManager, FileTask task, long fileSize, long segmentSize) {
+        this.fileManager = fileManager;
+        this.chatManager = chatManager;
+        this.task = task;
+        this.fileSize = fileSize;
+        this.segmentSize = segmentSize;
+        this.segmentCount = (int) ((fileSize + segmentSize - 1) / segmentSize);
+    }
+
+    synchronized FileDigest getDigest() {
+        return digest;
+    }
+
+    synchronized void setHolders(List<UUID> holders) {
+        this.holders.clear();
+        this.holders.addAll(holders);
+        nextHolder = 0;
+    }
+
+    /**
+     * 轮流连接已有该文件的用户，连不上的不再尝试，都连不上时返回 null
+     */
+    FileSession openHolderSession() {
+        while (true) {
+            UUID holder;
+            synchronized (this) {
+                if (holders.isEmpty()) return null;
+                nextHolder %= holders.size();
+                holder = holders.get(nextHolder++);
+            }
+            try {
+                FileSession session = fileManager.getOrCreateFileSession(holder);
+                if (session.isRanged()) return session;
+                chatManager.getSessionManager().releaseDownloadSession(session);
+            } catch (Exception e) {
+                logger.debug("连接已下载的用户失败 " + holder, e);
+            }
+            synchronized (this) {
+                holders.remove(holder);
+            }
+        }
+    }
+
+    /**
+     * 块的边界需要与摘要的块对齐
+     */
+    synchronized void setDigest(FileDigest digest) {
+        if (digest != null && (digest.getFileSize() != fileSize || segmentSize % FileDigest.BLOCK_SIZE != 0))
+            return;
+        this.digest = digest;
+    }
+
+    /**
+     * 在调用线程上协调各个连接，直到没有连接在工作，数据写入 part。全部块都已完成时返回 true。firstSession 总会被释放。
+     * 新增的连接优先连向已有该文件的用户，这些连接都断开后再从分享者获取剩下的块
+     */
+    boolean run(File part, FileSession firstSession, int maxStreams) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileManager.openPartFile(part, fileSize);
+        } catch (IOException e) {
+            chatManager.getSessionManager().releaseDownloadSession(firstSession);
+            throw e;
+        }
+        task.setFileSize(fileSize);
+        task.setTransferredBytes(getDoneBytes());
+        try {
+            synchronized (this) {
+                fileChannel = channel;
+            }
+            synchronized (this) {
+                isPaused = false;
+            }
+            UUID sharer = task.getKey().getUserId();
+            boolean usedSharer = sharer.equals(firstSession.getContextUserId());
+            startStream(firstSession);
+            int streams = 1;
+            boolean saturated = false;
+            long lastAdjustTime = System.currentTimeMillis();
+            long lastAdjustBytes = task.getTransferredBytes();
+            double lastRate = 0;
+            long lastReportedBytes = task.getTransferredBytes();
+            while (true) {
+                synchronized (this) {
+                    if (activeStreams == 0 && (usedSharer || isPaused || task.isStopRequested() || !fileManager.isAlive()
+                            || doneSegments.cardinality() == segmentCount)) break;
+                }
+                if (!usedSharer && activeStreams() == 0) {
+                    usedSharer = true;
+                    try {
+                        startStream(fileManager.getOrCreateFileSession(sharer));
+                    } catch (Exception e) {
+                        logger.debug("连接分享者失败", e);
+                        break;
+                    }
+                }
+                synchronized (this) {
+                    try {
+                        wait(PROGRESS_INTERVAL);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                long transferred = task.getTransferredBytes();
+                fileManager.getDownloadPool().addDownloadedBytes(transferred - lastReportedBytes);
+                lastReportedBytes = transferred;
+                fileManager.reportProgress(task);
+                long now = System.currentTimeMillis();
+                if (saturated || streams >= maxStreams || isPaused() || !hasUnclaimedSegment()) continue;
+                if (streams >= INITIAL_STREAMS && now - lastAdjustTime < ADJUST_INTERVAL) continue;
+                double rate = (task.getTransferredBytes() - lastAdjustBytes) * 1000.0 / Math.max(1, now - lastAdjustTime);
+                if (streams >= INITIAL_STREAMS && rate < lastRate * MIN_GAIN) {
+                    // 对方磁盘或网络已跑满
+                    saturated = true;
+                    logger.debug("分块下载连接数 " + streams);
+                    continue;
+                }
+                lastRate = rate;
+                lastAdjustTime = now;
+                lastAdjustBytes = task.getTransferredBytes();
+                try {
+                    FileSession session = openHolderSession();
+                    if (session == null) {
+                        session = fileManager.getOrCreateFileSession(sharer);
+                        usedSharer = true;
+                    }
+                    startStream(session);
+                    streams++;
+                } catch (Exception e) {
+                    logger.debug("增加连接失败", e);
+                    saturated = true;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                fileChannel = null;
+            }
+            Utils.closeQuietly(channel);
+        }
+        return isComplete();
+    }
+
+    private void startStream(FileSession session) {
+        synchronized (this) {
+            activeStreams++;
+        }
+        try {
+            chatManager.getExecutor().execute("file-segment", () -> stream(session));
+        } catch (RejectedExecutionException e) {
+            chatManager.getSessionManager().releaseDownloadSession(session);
+            synchronized (this) {
+                activeStreams--;
+                notifyAll();
+            }
+        }
+    }
+
+    private void stream(FileSession session) {
+        int index = -1;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (fileManager.isAlive() && session.isAlive() && !task.isStopRequested() && !checkYield()
+                    && (index = claimSegment()) != -1) {
+                fetch(session, index, buffer);
+                completeSegment(index);
+                index = -1;
+            }
+        } catch (Exception e) {
+            logger.debug("分块下载失败", e);
+            chatManager.notifySessionClosed(session);
+        } finally {
+            if (index != -1)
+                releaseSegment(index);
+            chatManager.getSessionManager().releaseDownloadSession(session);
+            synchronized (this) {
+                activeStreams--;
+                notifyAll();
+            }
+        }
+    }
+
+    private void fetch(FileSession session, int index, ByteBuffer buffer) throws IOException {
+        long offset = index * segmentSize;
+        long length = Math.min(segmentSize, fileSize - offset);
+        FileChannel channel;
+        FileDigest digest;
+        synchronized (this) {
+            channel = fileChannel;
+            digest = this.digest;
+        }
+        FileDigest.Verifier verifier = digest == null ? null : digest.verifier(offset);
+        boolean compressed = requestRange(session, task.getKey().getResId(), fileSize, offset, length);
+        readRange(fileManager, session, compressed, channel, offset, length, buffer, verifier, task);
+        if (verifier != null && !repairBlocks(fileManager, session, task.getKey().getResId(), digest, channel,
+                verifier.getDamagedBlocks()))
+            throw new IOException("校验失败 " + index);
+    }
+
+    /**
+     * 请求文件的一段，对方确认的起始位置不符时抛出异常。返回这一段是否压缩传输
+     */
+    static boolean requestRange(FileSession session, UUID resId, long fileSize, long offset, long length) throws IOException {
+        BufferedSink sink = session.getSink();
+        sink.writeUtf8(resId + " " + offset + " " + length + "\n");
+        sink.flush();
+        String sizeLine = session.getSource().readUtf8Line();
+        if (sizeLine == null)
+            throw new EOFException();
+        String[] parts = sizeLine.split(" ");
+        if (parts.length < 2 || Long.parseLong(parts[0]) != fileSize || Long.parseLong(parts[1]) != offset)
+            throw new IOException("文件已变化 " + sizeLine);
+        return parts.length > 2 && FileSession.CAP_DEFLATE.equals(parts[2]);
+    }
+
+    /**
+     * 把收到的数据写入文件的指定位置，计入 task 的进度。出错时扣除这一段已计入的字节，整段需要重新下载
+     */
+    static void readRange(FileManager fileManager, FileSession session, boolean compressed, FileChannel channel,
+                          long position, long length, ByteBuffer buffer, FileDigest.Verifier verifier, FileTask task)
+            throws IOException {
+        BandwidthLimiter limiter = fileManager.getDownloadLimiter();
+        TransferStats stats = fileManager.getTransferStats();
+        TransferCodec.Decoder decoder = compressed ? new TransferCodec.Decoder(session.getSource()) : null;
+        BufferedSource source = decoder != null ? decoder.source() : session.getSource();
+        long received = 0;
+        try {
+            while (received < length) {
+                // 暂停或取消时丢弃这一段，连接随之关闭
+                if (task != null && task.isStopRequested())
+                    throw new IOException("已停止");
+                buffer.clear();
+                buffer.limit((int) Math.min(length - received, buffer.capacity()));
+                // 攒满缓冲区再写入，写入次数更少
+                while (buffer.hasRemaining()) {
+                    int size = source.read(buffer);
+                    if (size == -1)
+                        throw new EOFException();
+                    long wireBytes = decoder != null ? decoder.takeWireBytes() : size;
+                    stats.addReceived(size, wireBytes);
+                    limiter.acquire(session.getContextUserId(), wireBytes);
+                }
+                buffer.flip();
+                int size = buffer.remaining();
+                if (verifier != null) {
+                    verifier.update(buffer);
+                    buffer.rewind();
+                }
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                received += size;
+                if (task != null)
+                    task.addTransferredBytes(size);
+            }
+            if (decoder != null)
+                stats.addReceived(0, decoder.finish());
+        } catch (IOException e) {
+            if (task != null)
+                task.addTransferredBytes(-received);
+            throw e;
+        } finally {
+            if (decoder != null)
+                decoder.end();
+        }
+    }
+
+    /**
+     * 逐块重新获取摘要不符的块，多轮之后仍有损坏时返回 false
+     */
+    static boolean repairBlocks(FileManager fileManager, FileSession session, UUID resId, FileDigest digest,
+                                FileChannel channel, BitSet damagedBlocks) throws IOException {
+        ByteBuffer buffer = null;
+        for (int round = 0; round < MAX_REPAIR_ROUNDS && !damagedBlocks.isEmpty(); round++) {
+            logger.debug("重新获取损坏的块 " + damagedBlocks);
+            if (buffer == null)
+                buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            BitSet stillDamaged = new BitSet();
+            for (int i = damagedBlocks.nextSetBit(0); i >= 0; i = damagedBlocks.nextSetBit(i + 1)) {
+                long offset = digest.getBlockOffset(i);
+                long length = digest.getBlockLength(i);
+                FileDigest.Verifier verifier = digest.verifier(offset);
+                boolean compressed = requestRange(session, resId, digest.getFileSize(), offset, length);
+                readRange(fileManager, session, compressed, channel, offset, length, buffer, verifier, null);
+                stillDamaged.or(verifier.getDamagedBlocks());
+            }
+            damagedBlocks = stillDamaged;
+        }
+        return damagedBlocks.isEmpty();
+    }
+
+    /**
+     * 有更优先的任务等待时整个任务暂停，各个连接完成手上的块后停止
+     */
+    private boolean checkYield() {
+        if (isPaused()) return true;
+        if (!hasUnclaimedSegment() || !fileManager.shouldYield(task)) return false;
+        synchronized (this) {
+            isPaused = true;
+        }
+        return true;
+    }
+
+    synchronized boolean isPaused() {
+        return isPaused;
+    }
+
+    private synchronized int claimSegment() {
+        for (int i = 0; i < segmentCount; i++) {
+            if (!doneSegments.get(i) && !claimedSegments.get(i)) {
+                claimedSegments.set(i);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void completeSegment(int index) {
+        claimedSegments.clear(index);
+        doneSegments.set(index);
+    }
+
+    private synchronized void releaseSegment(int index) {
+        claimedSegments.clear(index);
+    }
+
+    private synchronized int activeStreams() {
+        return activeStreams;
+    }
+
+    private synchronized boolean hasUnclaimedSegment() {
+        for (int i = 0; i < segmentCount; i++) {
+            if (!doneSegments.get(i) && !claimedSegments.get(i))
+                return true;
+        }
+        return false;
+    }
+
+    private synchronized long getDoneBytes() {
+        long bytes = 0;
+        for (int i = doneSegments.nextSetBit(0); i >= 0; i = doneSegments.nextSetBit(i + 1)) {
+            bytes += Math.min(segmentSize, fileSize - i * segmentSize);
+        }
+        return bytes;
+    }
+
+    synchronized boolean isComplete() {
+        return doneSegments.cardinality() == segmentCount;
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+}
@@ -9,20 +9,75 @@ import org.apache.logging.log4j.Logger;
 
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
 
 /**
  * 负责管理会话超时后的关闭和清除
  */
 public class SessionManager {
-    private final List<Session> sessions = new LinkedList<>();
-    private long nextTimeToCheck = 0L;
-    private static final long IDLE_TIME_OUT = 10 * 60 * 1000L;
+    // Session 的 equals/hashCode 依赖可变字段，只能按引用管理
+    private final Set<Session> sessions = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<ChatSession> chatSessions = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<UUID, UserSessions> userSessionsMap = new HashMap<>();
+    private static final long WHEEL_TICK = 1000L;
+    private static final int WHEEL_SIZE = 512;
+    // 会话的更新时间变化时不动时间轮，到期时再按最新的更新时间重新放入
+    private final TimingWheel<Session> idleWheel = new TimingWheel<>(WHEEL_TICK, WHEEL_SIZE);
+    // 已关闭、等待清除的会话
+    private final List<Session> closedSessions = new ArrayList<>();
+    private long chatIdleTimeout;
+    private long fileIdleTimeout;
     private final AtomicBoolean isAlive = new AtomicBoolean();
     private final ChatManager chatManager;
-    private final Map<UUID, ChatSession> chatSessionMap = new HashMap<>();
     private final Logger logger = LogManager.getLogger(getClass().getSimpleName());
 
+    /**
+     * 同一用户的所有会话。下载会话分为空闲和使用中两组，取用和归还都不需要遍历
+     */
+    private static class UserSessions {
+        // 双方同时发起连接时可能有多个，最后建立的为当前会话
+        final List<ChatSession> chatSessions = new ArrayList<>(1);
+        final Deque<FileSession> idleDownloadSessions = new ArrayDeque<>();
+        final Set<FileSession> busyDownloadSessions = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Set<FileSession> serverFileSessions = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        void add(Session session) {
+            if (session instanceof ChatSession) {
+                chatSessions.add((ChatSession) session);
+            } else if (session instanceof FileSession) {
+                FileSession fileSession = (FileSession) session;
+                if (!fileSession.isClient())
+                    serverFileSessions.add(fileSession);
+                else if (fileSession.isBusy())
+                    busyDownloadSessions.add(fileSession);
+                else
+                    idleDownloadSessions.addFirst(fileSession);
+            }
+        }
+
+        void remove(Session session) {
+            if (session instanceof ChatSession) {
+                chatSessions.remove(session);
+            } else if (session instanceof FileSession) {
+                FileSession fileSession = (FileSession) session;
+                if (!serverFileSessions.remove(fileSession) && !busyDownloadSessions.remove(fileSession))
+                    idleDownloadSessions.remove(fileSession);
+            }
+        }
+
+        List<Session> all() {
+            List<Session> list = new ArrayList<>(chatSessions);
+            list.addAll(idleDownloadSessions);
+            list.addAll(busyDownloadSessions);
+            list.addAll(serverFileSessions);
+            return list;
+        }
+
+        boolean isEmpty() {
+            return chatSessions.isEmpty() && idleDownloadSessions.isEmpty()
+                    && busyDownloadSessions.isEmpty() && serverFileSessions.isEmpty();
+        }
+    }
+
     public SessionManager(ChatManager chatManager) {
         this.chatManager = chatManager;
     }
@@ -31,6 +86,11 @@ public class SessionManager {
         if (isAlive.get())
             return;
         isAlive.set(true);
+        ChatConfig config = chatManager.getConfig();
+        synchronized (this) {
+            chatIdleTimeout = config.getChatIdleTimeout();
+            fileIdleTimeout = config.getFileIdleTimeout();
+        }
         new Thread(this::checkSessionLoop).start();
     }
 
@@ -40,16 +100,19 @@ public class SessionManager {
             closeSession(session);
         }
         sessions.clear();
+        chatSessions.clear();
+        userSessionsMap.clear();
+        closedSessions.clear();
         notifyAll();
     }
 
-    public void addSession(Session session) {
-        synchronized (this) {
-            sessions.add(session);
-        }
-        if (session instanceof ChatSession) {
-            chatSessionMap.put(session.getContextUserId(), (ChatSession) session);
-        }
+    public synchronized void addSession(Session session) {
+        sessions.add(session);
+        if (session instanceof ChatSession)
+            chatSessions.add((ChatSession) session);
+        userSessionsMap.computeIfAbsent(session.getContextUserId(), it -> new UserSessions()).add(session);
+        idleWheel.schedule(session, session.getUpdateTime().getTime() + getIdleTimeout(session));
+        notifyAll();
     }
 
     public void notifySessionClosed(Session session) {
@@ -58,11 +121,10 @@ public class SessionManager {
         closeSession(session);
         List<Session> associatedSessions = null;
         synchronized (this) {
-            if (session instanceof ChatSession) {
+            UserSessions userSessions = userSessionsMap.get(session.getContextUserId());
+            if (session instanceof ChatSession && userSessions != null) {
                 // 关闭所有与之有关的会话
-                associatedSessions = sessions.stream()
-                        .filter(it -> it.getContextUserId().equals(session.getContextUserId()))
-                        .collect(Collectors.toList());
+                associatedSessions = userSessions.all();
             }
         }
         if (associatedSessions != null) {
@@ -70,49 +132,63 @@ public class SessionManager {
                 closeSession(s);
             }
         }
+        wakeUp(session);
         synchronized (this) {
-            nextTimeToCheck = 0;
+            closedSessions.add(session);
+            if (associatedSessions != null)
+                closedSessions.addAll(associatedSessions);
             notifyAll();
         }
     }
 
     public synchronized List<ChatSession> getChatSessionList() {
-        return sessions
-                .stream()
-                .filter(it -> it instanceof ChatSession)
-                .map(it -> (ChatSession) it)
-                .collect(Collectors.toList());
+        return new ArrayList<>(chatSessions);
     }
 
+    /**
+     * 取出一个空闲的下载会话并标记为使用中，用完后需调用 {@link #releaseDownloadSession(FileSession)}
+     */
     public synchronized FileSession getAvailableDownloadSessionAndMarkBusy(UUID userId) {
-        FileSession session = sessions
-                .stream()
-                .filter(it ->
-                        it instanceof FileSession &&
-                        ((FileSession) it).isClient() &&
-                        !it.isBusy() &&
-                        it.getContextUserId().equals(userId)
-                )
-                .map(it -> (FileSession) it)
-                .findFirst()
-                .orElse(null);
+        UserSessions userSessions = userSessionsMap.get(userId);
+        if (userSessions == null) return null;
+        FileSession session;
+        while ((session = userSessions.idleDownloadSessions.pollFirst()) != null) {
+            // 已断开的留给清理线程移除
+            if (session.isAlive()) break;
+        }
         if (session == null) return null;
         session.setBusy(true);
+        userSessions.busyDownloadSessions.add(session);
         return session;
     }
 
+    public synchronized void releaseDownloadSession(FileSession session) {
+        session.setBusy(false);
+        UserSessions userSessions = userSessionsMap.get(session.getContextUserId());
+        if (userSessions == null || !userSessions.busyDownloadSessions.remove(session)) return;
+        if (session.isAlive())
+            userSessions.idleDownloadSessions.addFirst(session);
+    }
+
     public synchronized ChatSession findChatSessionByUserId(UUID userId) {
-        return chatSessionMap.get(userId);
+        UserSessions userSessions = userSessionsMap.get(userId);
+        if (userSessions == null || userSessions.chatSessions.isEmpty()) return null;
+        return userSessions.chatSessions.get(userSessions.chatSessions.size() - 1);
+    }
+
+    private synchronized long getIdleTimeout(Session session) {
+        return session instanceof FileSession ? fileIdleTimeout : chatIdleTimeout;
     }
 
     private void checkSessionLoop() {
         while (isAlive.get()) {
             synchronized (this) {
-                while (isAlive.get()) {
-                    long delta = nextTimeToCheck - System.currentTimeMillis();
-                    if (delta <= 0) break;
+                while (isAlive.get() && closedSessions.isEmpty()) {
+                    // 没有会话时一直等待，否则等到下一个刻度
+                    long delta = idleWheel.size() == 0 ? 0 : idleWheel.getNextTickTime() - System.currentTimeMillis();
+                    if (idleWheel.size() > 0 && delta <= 0) break;
                     try {
-                        wait(Math.min(delta, IDLE_TIME_OUT));
+                        wait(delta);
                     } catch (InterruptedException ignored) {
                     }
                 }
@@ -123,38 +199,57 @@ public class SessionManager {
     }
 
     private void checkSessions() {
-        long now = System.currentTimeMillis();
-        long minUpdateTime = now;
-        List<Session> toRemove = new ArrayList<>();
+        List<Session> toRemove;
         synchronized (this) {
-            Iterator<Session> iterator = sessions.iterator();
-            while (iterator.hasNext()) {
-                Session session = iterator.next();
-                if (session.isBusy() && session.isAlive()) continue;
-                if (now - session.getUpdateTime().getTime() > IDLE_TIME_OUT ||
-                        !session.isAlive() ||
-                        session.getSocket().isClosed()
-                ) {
-                    logger.debug("关闭 " + session + " " + session.getSocket().isClosed());
-                    iterator.remove();
-                    toRemove.add(session);
-                } else {
-                    minUpdateTime = Math.min(minUpdateTime, session.getUpdateTime().getTime());
-                }
+            toRemove = new ArrayList<>(closedSessions);
+            closedSessions.clear();
+        }
+        long now = System.currentTimeMillis();
+        for (Session session : idleWheel.advance(now)) {
+            synchronized (this) {
+                if (!sessions.contains(session)) continue;
+            }
+            long timeout = getIdleTimeout(session);
+            if (!session.isAlive() || session.getSocket().isClosed()) {
+                toRemove.add(session);
+            } else if (session.isBusy()) {
+                idleWheel.schedule(session, now + timeout);
+            } else if (now - session.getUpdateTime().getTime() > timeout) {
+                logger.debug("关闭 " + session + " " + session.getSocket().isClosed());
+                toRemove.add(session);
+            } else {
+                idleWheel.schedule(session, session.getUpdateTime().getTime() + timeout);
             }
         }
         for (Session session : toRemove) {
+            synchronized (this) {
+                if (!sessions.remove(session)) continue;
+                if (session instanceof ChatSession)
+                    chatSessions.remove(session);
+                UserSessions userSessions = userSessionsMap.get(session.getContextUserId());
+                if (userSessions != null) {
+                    userSessions.remove(session);
+                    if (userSessions.isEmpty())
+                        userSessionsMap.remove(session.getContextUserId());
+                }
+            }
             closeSession(session);
+            wakeUp(session);
             try {
                 chatManager.onSessionRemoved(session);
-                if (session instanceof ChatSession) {
-                    chatSessionMap.remove(session.getContextUserId());
-                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
-        nextTimeToCheck = minUpdateTime + IDLE_TIME_OUT;
+    }
+
+    /**
+     * 不能在持有本对象锁时调用
+     */
+    private void wakeUp(Session session) {
+        ChatClient chatClient = chatManager.getChatClient();
+        if (session instanceof ChatSession && chatClient != null)
+            chatClient.wakeUp(session.getContextUserId());
     }
 
     private void closeSession(Session session) {
@@ -0,0 +1,74 @@
+package cn.lai.jchat.chat;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 会话收发、握手、文件收发等任务统一从这里取线程，由 {@link ChatManagerImpl} 持有
+ */
+public abstract class TaskExecutor {
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong startedCount = new AtomicLong();
+    private volatile boolean isShutdown = false;
+    protected final Logger logger = LogManager.getLogger(getClass().getSimpleName());
+
+    /**
+     * 运行时支持虚拟线程时优先使用，否则退回有上限的平台线程池
+     */
+    public static TaskExecutor create(ChatConfig config) {
+        if (config.isVirtualThreadsEnabled()) {
+            TaskExecutor executor = VirtualThreadExecutor.tryCreate();
+            if (executor != null)
+                return executor;
+        }
+        return new PlatformThreadExecutor(config.getMaxPlatformThreads());
+    }
+
+    /**
+     * 线程耗尽或已停止时抛出 {@link RejectedExecutionException}
+     */
+    public void execute(String name, Runnable task) {
+        if (isShutdown)
+            throw new RejectedExecutionException("已停止");
+        activeCount.incrementAndGet();
+        try {
+            doExecute(name, () -> {
+                try {
+                    task.run();
+                } finally {
+                    activeCount.decrementAndGet();
+                }
+            });
+            startedCount.incrementAndGet();
+        } catch (RuntimeException e) {
+            activeCount.decrementAndGet();
+            logger.warn("任务被拒绝 " + name);
+            throw e;
+        }
+    }
+
+    protected abstract void doExecute(String name, Runnable task);
+
+    /**
+     * 不再接受新任务，已在运行的任务随各自的会话结束
+     */
+    public void shutdown() {
+        isShutdown = true;
+    }
+
+    public boolean isShutdown() {
+        return isShutdown;
+    }
+
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    public long getStartedCount() {
+        return startedCount.get();
+    }
+}
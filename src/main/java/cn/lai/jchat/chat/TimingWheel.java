@@ -0,0 +1,80 @@
+package cn.lai.jchat.chat;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 哈希时间轮，元素按到期的刻度放入槽位，推进时只检查经过的槽位。
+ * 超过一圈的元素记录绝对刻度，转到时未到期则留在原槽位
+ */
+public class TimingWheel<T> {
+    private final long tickMillis;
+    private final List<List<Entry<T>>> slots;
+    private long currentTick;
+    private int size = 0;
+
+    private static class Entry<T> {
+        final T item;
+        final long tick;
+
+        Entry(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    public TimingWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(new ArrayList<>());
+        }
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    /**
+     * deadline 为毫秒时间戳，最早在下一个刻度到期
+     */
+    public synchronized void schedule(T item, long deadline) {
+        long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+        slots.get((int) (tick % slots.size())).add(new Entry<>(item, tick));
+        size++;
+    }
+
+    /**
+     * 推进到 now，返回所有已到期的元素
+     */
+    public synchronized List<T> advance(long now) {
+        long targetTick = now / tickMillis;
+        List<T> expired = new ArrayList<>();
+        if (targetTick <= currentTick) return expired;
+        // 停顿超过一圈时每个槽位只需检查一次
+        long steps = Math.min(targetTick - currentTick, slots.size());
+        for (long i = 0; i < steps; i++) {
+            long tick = targetTick - steps + 1 + i;
+            Iterator<Entry<T>> iterator = slots.get((int) (tick % slots.size())).iterator();
+            while (iterator.hasNext()) {
+                Entry<T> entry = iterator.next();
+                if (entry.tick <= targetTick) {
+                    iterator.remove();
+                    expired.add(entry.item);
+                }
+            }
+        }
+        currentTick = targetTick;
+        size -= expired.size();
+        return expired;
+    }
+
+    /**
+     * 下一个刻度的时间戳
+     */
+    public synchronized long getNextTickTime() {
+        return (currentTick + 1) * tickMillis;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,51 @@
+package cn.lai.jchat.chat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶限速，速率为每秒字节数，最多积攒一秒的令牌。令牌可以透支，透支后取令牌的线程按欠下的量休眠，
+ * 多个线程同时取时依次排在后面
+ */
+public class TokenBucket {
+    private long rate;
+    private double tokens;
+    private long lastTime;
+
+    /**
+     * @param rate 每秒字节数，不大于 0 时不限速
+     */
+    public TokenBucket(long rate) {
+        setRate(rate);
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    public synchronized void setRate(long rate) {
+        this.rate = Math.max(0, rate);
+        this.tokens = this.rate;
+        this.lastTime = System.nanoTime();
+    }
+
+    public synchronized boolean isLimited() {
+        return rate > 0;
+    }
+
+    /**
+     * 取走 bytes 个令牌，不足时休眠到补足为止
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            if (rate <= 0) return;
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastTime) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+            lastTime = now;
+            tokens -= bytes;
+            if (tokens >= 0) return;
+            waitNanos = (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+}
@@ -0,0 +1,150 @@
+package cn.lai.jchat.chat;
+
+import cn.lai.jchat.model.FileSession;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.InflaterSource;
+import okio.Okio;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 文件内容的流式压缩。发送方按扩展名和内容采样决定是否压缩，在响应行末尾加上 {@link FileSession#CAP_DEFLATE}，
+ * 接收方边解压边写入，进度按解压后的字节计算
+ */
+public class TransferCodec {
+    // 太小的文件压缩省不了多少
+    private static final long MIN_SIZE = 4 * 1024;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // 采样压缩后不小于这个比例就不压缩
+    private static final double MAX_RATIO = 0.9;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // 本身已经压缩过的格式
+    private static final Pattern COMPRESSED_NAME = Pattern.compile(".*\\.(jpg|jpeg|png|gif|webp|mp3|aac|ogg|flac|mp4|mkv|"
+            + "avi|mov|flv|zip|rar|7z|gz|tgz|bz2|xz|zst|jar|apk|docx|xlsx|pptx|pdf)$");
+
+    public interface Listener {
+        /**
+         * @param bytes     原始字节数
+         * @param wireBytes 实际传输的字节数
+         */
+        void onTransferred(long bytes, long wireBytes) throws IOException;
+    }
+
+    /**
+     * 从 position 开始的 length 字节是否值得压缩
+     */
+    public static boolean shouldCompress(File file, long position, long length) {
+        if (length < MIN_SIZE || COMPRESSED_NAME.matcher(file.getName().toLowerCase(Locale.ROOT)).matches())
+            return false;
+        byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, length)];
+        int size;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(position);
+            size = raf.read(sample);
+        } catch (IOException e) {
+            return false;
+        }
+        if (size <= 0) return false;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, size);
+            deflater.finish();
+            byte[] output = new byte[sample.length];
+            while (!deflater.finished()) {
+                deflater.deflate(output);
+            }
+            return deflater.getBytesWritten() < size * MAX_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 压缩 source 中的 length 字节写入 sink，写完后 sink 中是一个完整的 deflate 流
+     */
+    public static void write(BufferedSource source, long length, BufferedSink sink, Listener listener,
+                             BooleanSupplier running) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            byte[] input = new byte[CHUNK_SIZE];
+            byte[] output = new byte[CHUNK_SIZE];
+            long remainSize = length;
+            long lastWireBytes = 0;
+            while (remainSize > 0) {
+                if (!running.getAsBoolean()) throw new IOException("已停止");
+                int size = source.read(input, 0, (int) Math.min(remainSize, input.length));
+                if (size == -1)
+                    throw new EOFException("文件长度已变化");
+                deflater.setInput(input, 0, size);
+                while (!deflater.needsInput()) {
+                    sink.write(output, 0, deflater.deflate(output));
+                }
+                remainSize -= size;
+                long wireBytes = deflater.getBytesWritten();
+                listener.onTransferred(size, wireBytes - lastWireBytes);
+                lastWireBytes = wireBytes;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                sink.write(output, 0, deflater.deflate(output));
+            }
+            listener.onTransferred(0, deflater.getBytesWritten() - lastWireBytes);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 接收方的解压流。只从连接中取走属于压缩流的字节，之后的响应不受影响
+     */
+    public static class Decoder {
+        private final Inflater inflater = new Inflater();
+        private final BufferedSource source;
+        private long lastWireBytes = 0;
+
+        public Decoder(BufferedSource wire) {
+            // 不能关闭，否则会关闭连接
+            this.source = Okio.buffer(new InflaterSource(wire, inflater));
+        }
+
+        public BufferedSource source() {
+            return source;
+        }
+
+        /**
+         * 上次调用以来从连接中读取的字节数
+         */
+        public long takeWireBytes() {
+            long wireBytes = inflater.getBytesRead();
+            long size = wireBytes - lastWireBytes;
+            lastWireBytes = wireBytes;
+            return size;
+        }
+
+        /**
+         * 读完原始字节后调用，确认压缩流也正好结束，返回最后读取的字节数
+         */
+        public long finish() throws IOException {
+            // 流已结束时 InflaterSource 仍会等待连接上的数据，不能直接调用 exhausted
+            if (source.getBuffer().size() > 0 || !inflater.finished() && !source.exhausted())
+                throw new IOException("压缩流长度不符");
+            return takeWireBytes();
+        }
+
+        /**
+         * 释放资源，可以重复调用
+         */
+        public void end() {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package cn.lai.jchat.chat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 文件传输的字节计数，分别统计原始字节和实际经过网络的字节，两者之比即压缩带来的提升
+ */
+public class TransferStats {
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder sentWireBytes = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+    private final LongAdder receivedWireBytes = new LongAdder();
+
+    public void addSent(long bytes, long wireBytes) {
+        sentBytes.add(bytes);
+        sentWireBytes.add(wireBytes);
+    }
+
+    public void addReceived(long bytes, long wireBytes) {
+        receivedBytes.add(bytes);
+        receivedWireBytes.add(wireBytes);
+    }
+
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+
+    public long getSentWireBytes() {
+        return sentWireBytes.sum();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    public long getReceivedWireBytes() {
+        return receivedWireBytes.sum();
+    }
+}
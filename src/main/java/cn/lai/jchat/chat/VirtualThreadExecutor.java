@@ -0,0 +1,35 @@
+package cn.lai.jchat.chat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 每个任务一个虚拟线程，阻塞的收发循环只占用很少的堆内存。
+ * 项目按 Java 11 编译，这里通过反射使用 JDK 21 的 Thread.ofVirtual()
+ */
+class VirtualThreadExecutor extends TaskExecutor {
+    private final ThreadFactory factory;
+
+    private VirtualThreadExecutor(ThreadFactory factory) {
+        this.factory = factory;
+    }
+
+    static VirtualThreadExecutor tryCreate() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return new VirtualThreadExecutor((ThreadFactory) factory.invoke(builder));
+        } catch (ReflectiveOperationException e) {
+            // JDK 21 以前没有该方法，预览版未开启 --enable-preview 时会抛出异常
+            return null;
+        }
+    }
+
+    @Override
+    protected void doExecute(String name, Runnable task) {
+        Thread thread = factory.newThread(task);
+        thread.setName(name);
+        thread.start();
+    }
+}
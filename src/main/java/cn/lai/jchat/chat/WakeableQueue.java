@@ -0,0 +1,45 @@
+package cn.lai.jchat.chat;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 消费者没有任务时一直等待，直到有新元素或被 {@link #wakeUp()} 唤醒后发现不必再等，
+ * 替代定时 poll 的空转
+ */
+public class WakeableQueue<T> {
+    private final Deque<T> items = new ArrayDeque<>();
+
+    public synchronized void put(T item) {
+        items.add(item);
+        notifyAll();
+    }
+
+    public synchronized T poll() {
+        return items.poll();
+    }
+
+    /**
+     * 队列为空且 running 不再成立时返回 null。修改 running 依赖的状态后需调用 {@link #wakeUp()}
+     */
+    public synchronized T take(BooleanSupplier running) throws InterruptedException {
+        while (items.isEmpty()) {
+            if (!running.getAsBoolean()) return null;
+            wait();
+        }
+        return items.poll();
+    }
+
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    public synchronized void clear() {
+        items.clear();
+    }
+
+    public synchronized boolean isEmpty() {
+        return items.isEmpty();
+    }
+}
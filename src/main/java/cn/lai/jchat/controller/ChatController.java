@@ -1,5 +1,6 @@
 package cn.lai.jchat.controller;
 
+import cn.lai.jchat.UIUtils;
 import cn.lai.jchat.Utils;
 import cn.lai.jchat.chat.*;
 import cn.lai.jchat.model.ChatMessage;
@@ -17,12 +18,19 @@ import javafx.scene.control.ListView;
 import javafx.scene.control.TextArea;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.util.Callback;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ChatController implements MessageSubscriber, FileTaskSubscriber {
 
@@ -110,34 +118,75 @@ public class ChatController implements MessageSubscriber, FileTaskSubscriber {
         input.setText("");
     }
 
-    public void pickFile() {
+    /**
+     * 右键选择目录，整个目录打包发送
+     */
+    public void pickFile(MouseEvent event) {
         if (user == null) return;
-        FileChooser chooser = new FileChooser();
-        chooser.setTitle("选择文件");
-        List<File> files = chooser.showOpenMultipleDialog(chatWrapper.getScene().getWindow());
+        List<File> files;
+        if (event.getButton() == MouseButton.SECONDARY) {
+            DirectoryChooser chooser = new DirectoryChooser();
+            chooser.setTitle("选择目录");
+            File dir = chooser.showDialog(chatWrapper.getScene().getWindow());
+            files = dir == null ? null : Collections.singletonList(dir);
+        } else {
+            FileChooser chooser = new FileChooser();
+            chooser.setTitle("选择文件");
+            files = chooser.showOpenMultipleDialog(chatWrapper.getScene().getWindow());
+        }
         if (files == null || files.isEmpty()) return;
         UUID userId = user.getId();
-        new Thread(() -> {
+        Runnable share = () -> {
+            FileManager fileManager = ChatManagerImpl.getInstance().getFileManager();
+            ChatClient chatClient = ChatManagerImpl.getInstance().getChatClient();
+            // 图片单独发送以便预览，其余多个文件和目录打包成一条消息。旧版本无法接收打包消息，逐个发送文件
+            List<File> others = new ArrayList<>();
+            boolean skipped = false;
             for (File file : files) {
                 ChatSession session = ChatManagerImpl.getInstance().getSessionManager().findChatSessionByUserId(userId);
                 if (session == null)
-                    break;
-                UUID resId = ChatManagerImpl.getInstance().getFileManager().share(file);
-                ChatMessage.FileType type = ChatMessage.FileResource.getFileType(file);
-                ChatMessage message;
-                if (type == ChatMessage.FileType.IMAGE) {
-                    message = ChatMessage.image(file, resId);
+                    return;
+                if (file.isDirectory() && !session.isArchivable()) {
+                    skipped = true;
+                } else if (file.isDirectory()) {
+                    others.add(file);
+                } else if (ChatMessage.FileResource.getFileType(file) == ChatMessage.FileType.IMAGE) {
+                    chatClient.sendMessage(userId, ChatMessage.image(file, fileManager.share(file)));
+                } else if (!session.isArchivable()) {
+                    chatClient.sendMessage(userId, ChatMessage.file(file, fileManager.share(file)));
                 } else {
-                    message = ChatMessage.file(file, resId);
+                    others.add(file);
+                }
+            }
+            if (skipped)
+                Platform.runLater(() -> UIUtils.showMessage("对方版本不支持接收目录"));
+            if (others.size() == 1 && !others.get(0).isDirectory()) {
+                File file = others.get(0);
+                chatClient.sendMessage(userId, ChatMessage.file(file, fileManager.share(file)));
+            } else if (!others.isEmpty()) {
+                long totalSize;
+                try {
+                    totalSize = BatchArchive.getTotalSize(others);
+                } catch (IOException e) {
+                    Platform.runLater(() -> UIUtils.showMessage("读取文件失败"));
+                    return;
                 }
-                ChatManagerImpl.getInstance().getChatClient().sendMessage(userId, message);
+                UUID resId = fileManager.shareBatch(others);
+                chatClient.sendMessage(userId, ChatMessage.batch(BatchArchive.getName(others), totalSize, resId));
             }
-        }).start();
+        };
+        // 程序退出时线程池不再接受任务
+        try {
+            ChatManagerImpl.getInstance().getExecutor().execute("file-share", share);
+        } catch (RejectedExecutionException ignored) {
+        }
     }
 
     private final Callback<ListView<ChatMessage>, ListCell<ChatMessage>> cellFactory = param -> new ListCell<>() {
         private final ItemChatMessageController left = new ItemChatMessageController(true);
         private final ItemChatMessageController right = new ItemChatMessageController(false);
+        // 当前显示的待接收图片，优先下载
+        private ChatMessage shownImage;
 
         @Override
         public void updateSelected(boolean selected) {
@@ -147,12 +196,28 @@ public class ChatController implements MessageSubscriber, FileTaskSubscriber {
         @Override
         protected void updateItem(ChatMessage item, boolean empty) {
             super.updateItem(item, empty);
+            updateShownImage(empty ? null : item);
             if (empty) {
                 setGraphic(null);
                 return;
             }
             setGraphic(item.isMine() ? right.setItem(item) : left.setItem(item));
         }
+
+        private void updateShownImage(ChatMessage item) {
+            if (item != null && (item.isMine() || item.getType() != ChatMessage.Type.IMAGE || item.getFile() == null))
+                item = null;
+            if (shownImage != null && (item == null || !shownImage.getFile().getResId().equals(item.getFile().getResId())))
+                setVisible(shownImage, false);
+            if (item != null)
+                setVisible(item, true);
+            shownImage = item;
+        }
+
+        private void setVisible(ChatMessage message, boolean visible) {
+            ChatManagerImpl.getInstance().getFileManager()
+                    .setVisible(message.getContextUserId(), message.getFile().getResId(), visible);
+        }
     };
 
     private boolean isUserInvalid(UUID userId) {
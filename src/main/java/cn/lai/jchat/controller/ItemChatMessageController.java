@@ -3,6 +3,8 @@ package cn.lai.jchat.controller;
 import cn.lai.jchat.ImageUtils;
 import cn.lai.jchat.UIUtils;
 import cn.lai.jchat.Utils;
+import cn.lai.jchat.chat.ChatManagerImpl;
+import cn.lai.jchat.chat.FileManager;
 import cn.lai.jchat.component.ChatImageView;
 import cn.lai.jchat.component.CircleImageView;
 import cn.lai.jchat.model.ChatMessage;
@@ -10,7 +12,9 @@ import cn.lai.jchat.model.FileTask;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Node;
+import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Label;
+import javafx.scene.control.MenuItem;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 
@@ -122,6 +126,8 @@ public class ItemChatMessageController implements ItemController<ChatMessage> {
             String status;
             if (task.getProgress() == FileTask.CANCELED)
                 status = prefix + "已取消";
+            else if (task.getProgress() == FileTask.PAUSED)
+                status = prefix + "已暂停";
             else if (task.getProgress() == FileTask.FAILED)
                 status = prefix + "失败";
             else if (task.getProgress() == FileTask.IDLE)
@@ -131,9 +137,40 @@ public class ItemChatMessageController implements ItemController<ChatMessage> {
             fileStatus.setText(status);
         }
         fileWrapper.setOnMouseClicked(e -> onClickFile(item));
+        fileWrapper.setOnContextMenuRequested(e -> {
+            ContextMenu menu = createFileTaskMenu(task);
+            if (menu != null)
+                menu.show(fileWrapper, e.getScreenX(), e.getScreenY());
+            e.consume();
+        });
         return fileRoot;
     }
 
+    /**
+     * 未完成的传输可以暂停、继续或取消
+     */
+    private static ContextMenu createFileTaskMenu(FileTask task) {
+        if (task == null || task.isDone()) return null;
+        FileManager fileManager = ChatManagerImpl.getInstance().getFileManager();
+        FileTask.Key key = task.getKey();
+        ContextMenu menu = new ContextMenu();
+        if (task.getProgress() >= 0f || task.getProgress() == FileTask.IDLE) {
+            MenuItem pause = new MenuItem("暂停");
+            pause.setOnAction(e -> fileManager.pause(key));
+            menu.getItems().add(pause);
+        } else {
+            MenuItem resume = new MenuItem("继续");
+            resume.setOnAction(e -> fileManager.resume(key));
+            menu.getItems().add(resume);
+        }
+        if (task.getProgress() != FileTask.CANCELED) {
+            MenuItem cancel = new MenuItem("取消");
+            cancel.setOnAction(e -> fileManager.cancel(key));
+            menu.getItems().add(cancel);
+        }
+        return menu;
+    }
+
     private final static String[][] fileTypeMap = new String[][] {
             {"zip", "zip", "rar", "tar", "gz"},
             {"txt", "txt"},
@@ -10,6 +10,8 @@ import java.util.Objects;
 import java.util.UUID;
 
 public class ChatMessage implements Serializable {
+    // 固定为加入 restore 之前的默认值，保证与旧版本互通
+    private static final long serialVersionUID = 7602434177893957122L;
     private final UUID id;
     private final String text;
 
@@ -27,17 +29,28 @@ public class ChatMessage implements Serializable {
     private transient boolean isMine;
 
     private ChatMessage(String text, String thumbnail, FileResource file, Type type, double imageWidth, double imageHeight) {
-        this.id = UUID.randomUUID();
+        this(UUID.randomUUID(), text, thumbnail, file, type, new Date(), imageWidth, imageHeight);
+        this.isMine = true;
+    }
+
+    private ChatMessage(UUID id, String text, String thumbnail, FileResource file, Type type, Date createTime, double imageWidth, double imageHeight) {
+        this.id = id;
         this.text = text;
         this.thumbnail = thumbnail;
         this.file = file;
         this.type = type;
-        this.createTime = new Date();
-        this.isMine = true;
+        this.createTime = createTime;
         this.imageWidth = imageWidth;
         this.imageHeight = imageHeight;
     }
 
+    /**
+     * 由编解码器还原收到的消息，transient 字段与反序列化结果一致保持默认值
+     */
+    public static ChatMessage restore(UUID id, String text, String thumbnail, FileResource file, Type type, Date createTime, double imageWidth, double imageHeight) {
+        return new ChatMessage(id, text, thumbnail, file, type, createTime, imageWidth, imageHeight);
+    }
+
     public ChatMessage copy() {
         ChatMessage chatMessage = copyWithoutFileTask();
         FileTask task = getFileTask();
@@ -56,9 +69,12 @@ public class ChatMessage implements Serializable {
         return chatMessage;
     }
 
+    /**
+     * task 是文件任务通知时生成的快照，直接使用不再复制
+     */
     public ChatMessage updateFileTask(FileTask task) {
         ChatMessage chatMessage = copyWithoutFileTask();
-        chatMessage.setFileTask(task.copy());
+        chatMessage.setFileTask(task);
         return chatMessage;
     }
 
@@ -96,6 +112,16 @@ public class ChatMessage implements Serializable {
         );
     }
 
+    public static ChatMessage batch(String name, long totalSize, UUID resId) {
+        return new ChatMessage(null,
+                null,
+                FileResource.restore(name, FileType.BATCH, totalSize, resId),
+                Type.FILE,
+                -1,
+                -1
+        );
+    }
+
     public UUID getId() {
         return id;
     }
@@ -187,6 +213,7 @@ public class ChatMessage implements Serializable {
                     if (p == FileTask.FAILED) summary += action + "失败";
                     else if (p == FileTask.CANCELED) summary += "取消" + action;
                     else if (p == FileTask.IDLE) summary += "等待" + action;
+                    else if (p == FileTask.PAUSED) summary += "暂停" + action;
                     else summary += String.format("%.1f%%", p * 100);
                 }
                 break;
@@ -235,6 +262,7 @@ public class ChatMessage implements Serializable {
     }
 
     public static class FileResource implements Serializable {
+        private static final long serialVersionUID = -5371761384382235909L;
         private final String fileName;
         private final FileType type;
         private final long fileSize;
@@ -295,6 +323,10 @@ public class ChatMessage implements Serializable {
                     '}';
         }
 
+        public static FileResource restore(String fileName, FileType type, long fileSize, UUID resId) {
+            return new FileResource(fileName, type, fileSize, resId);
+        }
+
         public static FileResource createFileResource(File file, UUID resId) {
             FileResource resource = new FileResource(file.getName(), getFileType(file), file.length(), resId);
             resource.localFilePath = file.getAbsolutePath();
@@ -311,6 +343,10 @@ public class ChatMessage implements Serializable {
     }
 
     public enum FileType implements Serializable {
-        IMAGE, OTHER
+        IMAGE, OTHER,
+        /**
+         * 多个文件或目录打包成一个流传输
+         */
+        BATCH
     }
 }
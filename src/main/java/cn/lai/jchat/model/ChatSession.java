@@ -8,9 +8,19 @@ import java.net.Socket;
 
 public class ChatSession extends Session {
     public static final String NAME = "CHAT";
+    /**
+     * 握手时附加在会话类型之后的能力，双方都支持时改用二进制分帧
+     */
+    public static final String CAP_FRAMED = "FRAMED";
+    /**
+     * 能接收打包多个文件和目录的消息，旧版本无法反序列化这类消息
+     */
+    public static final String CAP_ARCHIVE = "ARCHIVE";
     private User user;
     private int remoteServerPort;
     private final boolean isFromServer;
+    private boolean isFramed;
+    private boolean isArchivable;
 
     public ChatSession(Socket socket, BufferedSource source, BufferedSink sink, boolean isFromServer) throws IOException {
         super(socket, source, sink);
@@ -37,12 +47,30 @@ public class ChatSession extends Session {
         return isFromServer;
     }
 
+    public synchronized boolean isFramed() {
+        return isFramed;
+    }
+
+    public synchronized void setFramed(boolean framed) {
+        isFramed = framed;
+    }
+
+    public synchronized boolean isArchivable() {
+        return isArchivable;
+    }
+
+    public synchronized void setArchivable(boolean archivable) {
+        isArchivable = archivable;
+    }
+
     @Override
     public String toString() {
         return "ChatSession{" +
                 "user=" + user +
                 ", remoteServerPort=" + remoteServerPort +
                 ", isFromServer=" + isFromServer +
+                ", isFramed=" + isFramed +
+                ", isArchivable=" + isArchivable +
                 '}';
     }
 }
@@ -8,7 +8,61 @@ import java.net.Socket;
 
 public class FileSession extends Session {
     public static final String NAME = "FILE";
+    /**
+     * 握手时附加在会话类型之后的能力，双方都支持时请求可以带上起始位置
+     */
+    public static final String CAP_RANGE = "RANGE";
+    /**
+     * 支持按块获取文件摘要，接收方边下载边校验
+     */
+    public static final String CAP_DIGEST = "DIGEST";
+    /**
+     * 获取文件摘要：DIGEST 资源id，回复摘要，没有时回复 -1
+     */
+    public static final String REQUEST_DIGEST = "DIGEST";
+    /**
+     * 支持连续发出多个请求再依次读取响应，请求和响应行都带上请求 id
+     */
+    public static final String CAP_PIPELINE = "PIPELINE";
+    /**
+     * 带请求 id 的文件请求：GET 请求id 资源id 起始位置
+     */
+    public static final String REQUEST_GET = "GET";
+    /**
+     * 支持把多个文件和目录打包成一个流发送
+     */
+    public static final String CAP_ARCHIVE = "ARCHIVE";
+    /**
+     * 获取打包的资源：ARCHIVE 资源id，回复总大小，之后是打包的内容，没有时回复 -1
+     */
+    public static final String REQUEST_ARCHIVE = "ARCHIVE";
+    /**
+     * 下载完成的用户也可以提供该文件。HAVE 资源id 告知分享者自己已有该文件，不需回复；
+     * PEERS 资源id 返回一行以空格分隔的已有该文件的用户 id
+     */
+    public static final String CAP_SWARM = "SWARM";
+    public static final String REQUEST_HAVE = "HAVE";
+    public static final String REQUEST_PEERS = "PEERS";
+    /**
+     * 支持压缩传输。发送方认为值得压缩时在响应行末尾加上 DEFLATE，之后的文件内容是 deflate 流
+     */
+    public static final String CAP_DEFLATE = "DEFLATE";
+    /**
+     * 支持把暂停、继续和取消告知对方。PAUSE|RESUME|CANCEL 资源id，回复一行 OK。
+     * 暂停或取消的发送任务对之后的请求回复 -1，直到继续
+     */
+    public static final String CAP_CONTROL = "CONTROL";
+    public static final String REQUEST_PAUSE = "PAUSE";
+    public static final String REQUEST_RESUME = "RESUME";
+    public static final String REQUEST_CANCEL = "CANCEL";
     private final boolean isClient;
+    private boolean isRanged;
+    private boolean isVerifiable;
+    private boolean isPipelined;
+    private boolean isArchivable;
+    private boolean isSwarmable;
+    private boolean isCompressible;
+    private boolean isControllable;
 
     public FileSession(Socket socket, BufferedSource source, BufferedSink sink, boolean isClient) throws IOException {
         super(socket, source, sink);
@@ -19,10 +73,73 @@ public class FileSession extends Session {
         return isClient;
     }
 
+    public synchronized boolean isRanged() {
+        return isRanged;
+    }
+
+    public synchronized void setRanged(boolean ranged) {
+        isRanged = ranged;
+    }
+
+    public synchronized boolean isVerifiable() {
+        return isVerifiable;
+    }
+
+    public synchronized void setVerifiable(boolean verifiable) {
+        isVerifiable = verifiable;
+    }
+
+    public synchronized boolean isPipelined() {
+        return isPipelined;
+    }
+
+    public synchronized void setPipelined(boolean pipelined) {
+        isPipelined = pipelined;
+    }
+
+    public synchronized boolean isArchivable() {
+        return isArchivable;
+    }
+
+    public synchronized void setArchivable(boolean archivable) {
+        isArchivable = archivable;
+    }
+
+    public synchronized boolean isSwarmable() {
+        return isSwarmable;
+    }
+
+    public synchronized void setSwarmable(boolean swarmable) {
+        isSwarmable = swarmable;
+    }
+
+    public synchronized boolean isCompressible() {
+        return isCompressible;
+    }
+
+    public synchronized void setCompressible(boolean compressible) {
+        isCompressible = compressible;
+    }
+
+    public synchronized boolean isControllable() {
+        return isControllable;
+    }
+
+    public synchronized void setControllable(boolean controllable) {
+        isControllable = controllable;
+    }
+
     @Override
     public String toString() {
         return "FileSession{" +
                 "isClient=" + isClient +
+                ", isRanged=" + isRanged +
+                ", isVerifiable=" + isVerifiable +
+                ", isPipelined=" + isPipelined +
+                ", isArchivable=" + isArchivable +
+                ", isSwarmable=" + isSwarmable +
+                ", isCompressible=" + isCompressible +
+                ", isControllable=" + isControllable +
                 '}';
     }
 }
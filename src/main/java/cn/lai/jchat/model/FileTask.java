@@ -2,17 +2,29 @@ package cn.lai.jchat.model;
 
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FileTask {
     public final static float FAILED = -1F;
     public final static float CANCELED = -2F;
     public final static float IDLE = -3F;
+    public final static float PAUSED = -4F;
 
     private final Key key;
     private final String fileName;
+    // 传输过程中为 0，实际进度由已传输的字节数计算
     private float progress;
     private boolean isDone;
     private String filePath;
+    // 未知时为 -1
+    private volatile long fileSize = -1;
+    private volatile ChatMessage.FileType fileType;
+    // 传输线程只更新计数，不加锁
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final AtomicLong reportTime = new AtomicLong();
+    private volatile int reportedPercent = -1;
+    // 用户要求暂停或取消时为 PAUSED 或 CANCELED，传输线程每处理一段数据检查一次
+    private volatile float stopRequest = 0f;
 
     public FileTask(Key key, String fileName) {
         this.key = key;
@@ -28,8 +40,15 @@ public class FileTask {
         return fileName;
     }
 
-    public synchronized float getProgress() {
-        return progress;
+    public float getProgress() {
+        float state;
+        synchronized (this) {
+            if (isDone || progress < 0f) return progress;
+            state = progress;
+        }
+        long total = fileSize;
+        if (total <= 0) return state;
+        return Math.min(1f, (float) transferredBytes.get() / total);
     }
 
     public synchronized void setProgress(float progress) {
@@ -37,7 +56,7 @@ public class FileTask {
     }
 
     public synchronized boolean startDownload() {
-        if (progress >= 0f) return false;
+        if (progress >= 0f || isStopRequested()) return false;
         progress = 0f;
         return true;
     }
@@ -58,10 +77,69 @@ public class FileTask {
         this.filePath = filePath;
     }
 
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public ChatMessage.FileType getFileType() {
+        return fileType;
+    }
+
+    public void setFileType(ChatMessage.FileType fileType) {
+        this.fileType = fileType;
+    }
+
+    public boolean isStopRequested() {
+        return stopRequest != 0f;
+    }
+
+    public float getStopRequest() {
+        return stopRequest;
+    }
+
+    /**
+     * @param state {@link #PAUSED} 或 {@link #CANCELED}，为 0 时表示继续
+     */
+    public void setStopRequest(float state) {
+        stopRequest = state;
+    }
+
+    public long getTransferredBytes() {
+        return transferredBytes.get();
+    }
+
+    public void setTransferredBytes(long bytes) {
+        transferredBytes.set(bytes);
+    }
+
+    public void addTransferredBytes(long bytes) {
+        transferredBytes.addAndGet(bytes);
+    }
+
+    /**
+     * 距上次通知超过 interval 毫秒且进度至少变化 1% 时返回 true，多个线程同时调用时只有一个返回 true
+     */
+    public boolean claimReport(long now, long interval) {
+        long last = reportTime.get();
+        if (now - last < interval) return false;
+        int percent = (int) (getProgress() * 100);
+        if (percent == reportedPercent) return false;
+        if (!reportTime.compareAndSet(last, now)) return false;
+        reportedPercent = percent;
+        return true;
+    }
+
     public FileTask copy() {
         FileTask task = new FileTask(key, fileName);
         task.setDone(isDone());
         task.setFilePath(getFilePath());
+        task.setFileSize(getFileSize());
+        task.setFileType(getFileType());
+        task.setTransferredBytes(getTransferredBytes());
         task.setProgress(getProgress());
         return task;
     }
@@ -0,0 +1,63 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.BatchArchive;
+import okio.Buffer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+public class BatchArchiveTest {
+
+    private static void deleteTree(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testWriteRead() throws Exception {
+        Path src = Files.createTempDirectory("batch-src");
+        Path dst = Files.createTempDirectory("batch-dst");
+        try {
+            Path dir = Files.createDirectories(src.resolve("photos/2024"));
+            Files.createDirectories(src.resolve("photos/empty"));
+            byte[] big = new byte[200 * 1024];
+            new Random(1).nextBytes(big);
+            Files.write(dir.resolve("a.bin"), big);
+            Files.write(src.resolve("photos/b.txt"), "hello".getBytes());
+            Path single = Files.write(src.resolve("c.txt"), new byte[0]);
+            File[] roots = {src.resolve("photos").toFile(), single.toFile()};
+            Assertions.assertEquals(big.length + 5, BatchArchive.getTotalSize(Arrays.asList(roots)));
+
+            Buffer buffer = new Buffer();
+            AtomicLong written = new AtomicLong();
+            BatchArchive.write(Arrays.asList(roots), buffer, written::addAndGet, () -> true);
+            Assertions.assertEquals(big.length + 5, written.get());
+            AtomicLong read = new AtomicLong();
+            BatchArchive.read(buffer, dst.toFile(), read::addAndGet);
+            Assertions.assertTrue(buffer.exhausted());
+            Assertions.assertEquals(written.get(), read.get());
+            Assertions.assertArrayEquals(big, Files.readAllBytes(dst.resolve("photos/2024/a.bin")));
+            Assertions.assertEquals("hello", new String(Files.readAllBytes(dst.resolve("photos/b.txt"))));
+            Assertions.assertTrue(Files.isDirectory(dst.resolve("photos/empty")));
+            Assertions.assertEquals(0, Files.size(dst.resolve("c.txt")));
+
+            // 不允许写到目标目录之外
+            Buffer evil = new Buffer().writeUtf8("F 1 ../evil.txt\nx");
+            Assertions.assertThrows(IOException.class, () -> BatchArchive.read(evil, dst.toFile(), size -> {
+            }));
+        } finally {
+            deleteTree(src);
+            deleteTree(dst);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.CompactCodec;
+import cn.lai.jchat.chat.ObjectHelper;
+import cn.lai.jchat.model.ChatMessage;
+import cn.lai.jchat.model.OnlineUser;
+import cn.lai.jchat.model.User;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.UUID;
+
+public class CompactCodecTest {
+
+    private static Object roundTrip(Object o) throws Exception {
+        return CompactCodec.deserialize(CompactCodec.serialize(o));
+    }
+
+    private static void assertSameMessage(ChatMessage expected, ChatMessage actual) {
+        Assertions.assertEquals(expected.getId(), actual.getId());
+        Assertions.assertEquals(expected.getText(), actual.getText());
+        Assertions.assertEquals(expected.getThumbnail(), actual.getThumbnail());
+        Assertions.assertEquals(expected.getImageWidth(), actual.getImageWidth());
+        Assertions.assertEquals(expected.getImageHeight(), actual.getImageHeight());
+        Assertions.assertEquals(expected.getFile(), actual.getFile());
+        Assertions.assertEquals(expected.getType(), actual.getType());
+        Assertions.assertEquals(expected.getCreateTime(), actual.getCreateTime());
+        Assertions.assertFalse(actual.isMine());
+        Assertions.assertNull(actual.getState());
+    }
+
+    @Test
+    public void testChatMessage() throws Exception {
+        ChatMessage text = ChatMessage.text("你好 hello");
+        assertSameMessage(text, (ChatMessage) roundTrip(text));
+
+        ChatMessage.FileResource file = ChatMessage.FileResource.restore("报告.pdf",
+                ChatMessage.FileType.OTHER, 123456789L, UUID.randomUUID());
+        ChatMessage message = ChatMessage.restore(UUID.randomUUID(), null, "thumb", file,
+                ChatMessage.Type.IMAGE, new Date(), 640, 480.5);
+        assertSameMessage(message, (ChatMessage) roundTrip(message));
+    }
+
+    @Test
+    public void testUser() throws Exception {
+        User user = new User(UUID.randomUUID(), "张三", ByteString.of(new byte[1024]).base64());
+        Assertions.assertEquals(user, roundTrip(user));
+        User empty = new User();
+        Assertions.assertEquals(empty, roundTrip(empty));
+
+        OnlineUser onlineUser = new OnlineUser(user, "192.168.1.2", 12345, new Date());
+        Assertions.assertEquals(onlineUser, roundTrip(onlineUser));
+        OnlineUser partial = new OnlineUser();
+        partial.setUser(user);
+        Assertions.assertEquals(partial, roundTrip(partial));
+    }
+
+    @Test
+    public void testJavaSerializedFallback() throws Exception {
+        User user = new User(UUID.randomUUID(), "李四", null);
+        Assertions.assertEquals(user, CompactCodec.deserialize(ObjectHelper.serialize(user)));
+        ChatMessage message = ChatMessage.text("旧版本");
+        assertSameMessage(message, (ChatMessage) CompactCodec.deserialize(ObjectHelper.serialize(message)));
+    }
+
+    @Test
+    public void testSmallerThanJavaSerialization() throws Exception {
+        ChatMessage message = ChatMessage.text("hi");
+        Assertions.assertTrue(CompactCodec.serialize(message).size() * 4 < ObjectHelper.serialize(message).size());
+        OnlineUser onlineUser = new OnlineUser(new User(UUID.randomUUID(), "王五", ""), "10.0.0.1", 80, new Date());
+        Assertions.assertTrue(CompactCodec.serialize(onlineUser).size() * 4 < ObjectHelper.serialize(onlineUser).size());
+    }
+
+    @Test
+    public void testCorrupted() throws Exception {
+        Assertions.assertThrows(IOException.class, () -> CompactCodec.deserialize(new Buffer().writeUtf8("garbage")));
+        Buffer truncated = new Buffer();
+        truncated.write(CompactCodec.serialize(ChatMessage.text("hello")).readByteString(10));
+        Assertions.assertThrows(IOException.class, () -> CompactCodec.deserialize(truncated));
+    }
+}
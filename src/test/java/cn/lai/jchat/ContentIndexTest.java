@@ -0,0 +1,29 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.ContentIndex;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class ContentIndexTest {
+
+    @Test
+    public void testFind() throws Exception {
+        File file = File.createTempFile("index", ".bin");
+        try {
+            Files.write(file.toPath(), new byte[]{1, 2, 3});
+            ContentIndex index = new ContentIndex();
+            index.put("abc", file);
+            Assertions.assertEquals(file.getAbsoluteFile(), index.find("abc"));
+            Assertions.assertNull(index.find("def"));
+            // 文件修改后不再使用
+            Files.write(file.toPath(), new byte[]{1, 2, 3, 4});
+            Assertions.assertNull(index.find("abc"));
+            Assertions.assertEquals(0, index.size());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.DownloadNameIndex;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+public class DownloadNameIndexTest {
+
+    @Test
+    public void testReserve() throws Exception {
+        Path dir = Files.createTempDirectory("names");
+        DownloadNameIndex index = new DownloadNameIndex(dir.toFile());
+        Thread watcher = new Thread(index::watch);
+        try {
+            Files.createFile(dir.resolve("a.png"));
+            Files.createFile(dir.resolve("a(3).png"));
+            Files.createFile(dir.resolve("b.txt" + Constants.PART_SUFFIX));
+            Assertions.assertEquals("a(4).png", index.reserve("a.png").getName());
+            // 下载中的临时文件也占用名称
+            Assertions.assertEquals("b(1).txt", index.reserve("b.txt").getName());
+            Assertions.assertEquals("c", index.reserve("c").getName());
+            Assertions.assertEquals("c(1)", index.reserve("c").getName());
+            // 多个线程同时分配也不会重复
+            List<String> names = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Thread thread = new Thread(() -> {
+                    for (int j = 0; j < 100; j++) {
+                        names.add(index.reserve("screenshot.png").getName());
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assertions.assertEquals(800, new HashSet<>(names).size());
+
+            watcher.start();
+            // 等到目录监视开始
+            long deadline = System.currentTimeMillis() + 10_000;
+            for (int i = 0; index.reserve("probe" + i).getName().equals("probe" + i); i++) {
+                Assertions.assertTrue(System.currentTimeMillis() < deadline, "目录监视超时");
+                Files.createFile(dir.resolve("probe" + (i + 1)));
+                Thread.sleep(20);
+            }
+            // 其他程序创建和删除的文件
+            Files.createFile(dir.resolve("d.txt"));
+            Files.delete(dir.resolve("a.png"));
+            String name;
+            while (!(name = index.reserve("a.png").getName()).equals("a.png")) {
+                Assertions.assertTrue(System.currentTimeMillis() < deadline, "目录监视超时 " + name);
+                Thread.sleep(20);
+            }
+            Assertions.assertEquals("d(1).txt", index.reserve("d.txt").getName());
+        } finally {
+            index.close();
+            watcher.join(5000);
+            try (Stream<Path> paths = Files.list(dir)) {
+                paths.map(Path::toFile).forEach(File::delete);
+            }
+            Files.delete(dir);
+        }
+    }
+}
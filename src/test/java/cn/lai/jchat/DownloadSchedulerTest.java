@@ -0,0 +1,103 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.DownloadScheduler;
+import cn.lai.jchat.model.ChatMessage;
+import cn.lai.jchat.model.FileTask;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+public class DownloadSchedulerTest {
+
+    private static FileTask task(String name, long size, ChatMessage.FileType type) {
+        FileTask task = new FileTask(new FileTask.Key(true, UUID.randomUUID(), UUID.randomUUID()), name);
+        task.setFileSize(size);
+        task.setFileType(type);
+        return task;
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        FileTask iso = task("a.iso", 4L * 1024 * 1024 * 1024, ChatMessage.FileType.OTHER);
+        FileTask video = task("b.mp4", 100L * 1024 * 1024, ChatMessage.FileType.OTHER);
+        FileTask doc = task("c.txt", 1024, ChatMessage.FileType.OTHER);
+        FileTask image = task("d.png", 2 * 1024 * 1024, ChatMessage.FileType.IMAGE);
+        FileTask shown = task("e.png", 2 * 1024 * 1024, ChatMessage.FileType.IMAGE);
+        scheduler.put(iso);
+        scheduler.put(video);
+        scheduler.put(doc);
+        scheduler.put(image);
+        scheduler.put(shown);
+        scheduler.setVisible(shown.getKey(), true);
+        Assertions.assertSame(shown, scheduler.take(() -> true));
+        Assertions.assertSame(image, scheduler.take(() -> true));
+        Assertions.assertSame(doc, scheduler.take(() -> true));
+        Assertions.assertSame(video, scheduler.take(() -> true));
+        Assertions.assertSame(iso, scheduler.take(() -> true));
+        Assertions.assertNull(scheduler.take(() -> false));
+    }
+
+    @Test
+    public void testYield() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        FileTask iso = task("a.iso", 4L * 1024 * 1024 * 1024, ChatMessage.FileType.OTHER);
+        FileTask video = task("b.mp4", 100L * 1024 * 1024, ChatMessage.FileType.OTHER);
+        Assertions.assertFalse(scheduler.shouldYield(iso));
+        scheduler.put(task("d.png", 1024, ChatMessage.FileType.IMAGE));
+        // 只需要一个下载让出
+        Assertions.assertTrue(scheduler.shouldYield(iso));
+        Assertions.assertFalse(scheduler.shouldYield(video));
+        scheduler.take(() -> true);
+        // 同级或更低的任务不抢占
+        scheduler.put(task("c.iso", 4L * 1024 * 1024 * 1024, ChatMessage.FileType.OTHER));
+        Assertions.assertFalse(scheduler.shouldYield(video));
+        Assertions.assertFalse(scheduler.shouldYield(iso));
+    }
+
+    @Test
+    public void testYieldToFullPeer() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        scheduler.setMaxPerPeer(1);
+        FileTask iso = task("a.iso", 4L * 1024 * 1024 * 1024, ChatMessage.FileType.OTHER);
+        FileTask busy = task("b.iso", 4L * 1024 * 1024 * 1024, ChatMessage.FileType.OTHER);
+        scheduler.put(iso);
+        scheduler.put(busy);
+        Assertions.assertSame(iso, scheduler.take(() -> true));
+        Assertions.assertSame(busy, scheduler.take(() -> true));
+        // 该用户已在下载，让出后也取不走
+        scheduler.put(new FileTask(new FileTask.Key(true, busy.getKey().getUserId(), UUID.randomUUID()), "c.png"));
+        Assertions.assertFalse(scheduler.shouldYield(iso));
+        FileTask image = task("d.png", 1024, ChatMessage.FileType.IMAGE);
+        scheduler.put(image);
+        Assertions.assertTrue(scheduler.shouldYield(iso));
+        // 让出的任务重新入队，排在图片之后
+        scheduler.put(iso);
+        scheduler.finish(iso);
+        Assertions.assertSame(image, scheduler.take(() -> true));
+        Assertions.assertSame(iso, scheduler.take(() -> true));
+        Assertions.assertFalse(scheduler.shouldYield(iso));
+    }
+
+    @Test
+    public void testTakeMore() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        UUID userId = UUID.randomUUID();
+        FileTask[] tasks = new FileTask[4];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new FileTask(new FileTask.Key(true, userId, UUID.randomUUID()), i + ".txt");
+            tasks[i].setFileSize(i == 2 ? 100L * 1024 * 1024 : 1024);
+            scheduler.put(tasks[i]);
+        }
+        FileTask other = task("x.txt", 1024, ChatMessage.FileType.OTHER);
+        scheduler.put(other);
+        Assertions.assertSame(tasks[0], scheduler.take(() -> true));
+        // 只取同一用户的小文件
+        Assertions.assertEquals(Arrays.asList(tasks[1], tasks[3]),
+                scheduler.takeMore(userId, 8, task -> task.getFileSize() < 1024 * 1024));
+        Assertions.assertSame(other, scheduler.take(() -> true));
+        Assertions.assertSame(tasks[2], scheduler.take(() -> true));
+    }
+}
@@ -0,0 +1,49 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.DownloadWorkerPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class DownloadWorkerPoolTest {
+
+    @Test
+    public void testAdjust() {
+        DownloadWorkerPool pool = new DownloadWorkerPool(2, 8);
+        Assertions.assertTrue(pool.tryAddWorker());
+        // 有空闲线程时不增加
+        pool.onIdle();
+        Assertions.assertFalse(pool.tryAddWorker());
+        pool.onBusy();
+        Assertions.assertTrue(pool.tryAddWorker());
+        // 达到目标数量
+        Assertions.assertFalse(pool.tryAddWorker());
+        Assertions.assertEquals(2, pool.getBusyCount());
+
+        long now = 1_000_000;
+        pool.adjust(now, true);
+        // 吞吐随线程数上升
+        pool.addDownloadedBytes(2_000_000);
+        Assertions.assertEquals(3, pool.adjust(now += 1000, true));
+        Assertions.assertEquals(2_000_000, pool.getThroughput());
+        Assertions.assertTrue(pool.tryAddWorker());
+        pool.addDownloadedBytes(3_000_000);
+        Assertions.assertEquals(3, pool.adjust(now += 1000, true));
+        pool.addDownloadedBytes(3_000_000);
+        Assertions.assertEquals(4, pool.adjust(now += 1000, true));
+        Assertions.assertTrue(pool.tryAddWorker());
+        // 吞吐不再上升，退回一个并暂停增加
+        pool.addDownloadedBytes(3_000_000);
+        Assertions.assertEquals(3, pool.adjust(now += 1000, true));
+        pool.addDownloadedBytes(3_000_000);
+        Assertions.assertEquals(3, pool.adjust(now += 1000, true));
+        Assertions.assertTrue(pool.isOversized());
+        Assertions.assertTrue(pool.tryRetire());
+        Assertions.assertFalse(pool.tryRetire());
+        Assertions.assertEquals(3, pool.getWorkerCount());
+        // 没有排队的任务时缩回最小数量
+        pool.onIdle();
+        pool.onIdle();
+        Assertions.assertEquals(2, pool.adjust(now += 1000, false));
+        Assertions.assertEquals(2, pool.adjust(now += 1000, false));
+    }
+}
@@ -0,0 +1,83 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.FileDigest;
+import okio.Buffer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.Random;
+
+public class FileDigestTest {
+
+    @Test
+    public void testVerifyStream() throws Exception {
+        byte[] content = new byte[FileDigest.BLOCK_SIZE * 3 + 100];
+        new Random(2).nextBytes(content);
+        File file = File.createTempFile("digest", ".bin");
+        try {
+            Files.write(file.toPath(), content);
+            FileDigest digest = FileDigest.compute(file);
+            Assertions.assertEquals(4, digest.getBlockCount());
+            Assertions.assertTrue(digest.matches(file));
+
+            Buffer buffer = new Buffer();
+            digest.write(buffer);
+            FileDigest received = FileDigest.read(buffer, buffer.readUtf8LineStrict());
+            Assertions.assertTrue(buffer.exhausted());
+            Assertions.assertEquals(digest.getContentHash(), received.getContentHash());
+
+            FileDigest.Verifier verifier = received.verifier(0);
+            for (int i = 0; i < content.length; i += 7000) {
+                verifier.update(content, i, Math.min(7000, content.length - i));
+            }
+            Assertions.assertTrue(verifier.getDamagedBlocks().isEmpty());
+
+            // 第 2 块和最后一块损坏，从第 2 块开始续传
+            content[FileDigest.BLOCK_SIZE + 5] ^= 1;
+            content[content.length - 1] ^= 1;
+            verifier = received.verifier(FileDigest.BLOCK_SIZE);
+            verifier.update(ByteBuffer.wrap(content, FileDigest.BLOCK_SIZE, content.length - FileDigest.BLOCK_SIZE));
+            BitSet expected = new BitSet();
+            expected.set(1);
+            expected.set(3);
+            Assertions.assertEquals(expected, verifier.getDamagedBlocks());
+
+            Assertions.assertThrows(IllegalArgumentException.class, () -> received.verifier(100));
+
+            Files.write(file.toPath(), content);
+            Assertions.assertNotEquals(digest.getContentHash(), FileDigest.compute(file).getContentHash());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReadInvalidHeader() throws Exception {
+        // 块数和大小由对方决定，不能据此分配
+        for (String header : new String[]{"1 2000000000 2000000000", "0 10 1", "-1 10 -10",
+                FileDigest.BLOCK_SIZE + " -1 0", FileDigest.BLOCK_SIZE + " " + Long.MAX_VALUE + " 2147483647"}) {
+            Assertions.assertThrows(IOException.class, () -> FileDigest.read(new Buffer(), header), header);
+        }
+        byte[] content = new byte[FileDigest.BLOCK_SIZE + 1];
+        File file = File.createTempFile("digest", ".bin");
+        try {
+            Files.write(file.toPath(), content);
+            FileDigest digest = FileDigest.compute(file);
+            Buffer buffer = new Buffer();
+            digest.write(buffer);
+            digest.write(buffer);
+            // 大小与预期不符时跳过，后面的数据仍能读取
+            Assertions.assertNull(FileDigest.read(buffer, buffer.readUtf8LineStrict(), content.length - 1));
+            FileDigest received = FileDigest.read(buffer, buffer.readUtf8LineStrict(), content.length);
+            Assertions.assertEquals(digest.getContentHash(), received.getContentHash());
+            Assertions.assertTrue(buffer.exhausted());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.ChatManagerImpl;
+import cn.lai.jchat.chat.FileTaskSubscriber;
+import cn.lai.jchat.model.ChatMessage;
+import cn.lai.jchat.model.FileTask;
+import org.junit.jupiter.api.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * b 从 a 下载文件，检查下载目录中的结果
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class FileDownloadTest {
+    // 限速后传输需要几秒，能在中途暂停
+    private static final int RATE = 1024 * 1024;
+    private ChatManagerImpl a, b;
+    private UUID aId;
+    private final Map<UUID, FileTask> tasks = new ConcurrentHashMap<>();
+    private final List<File> createdFiles = new ArrayList<>();
+
+    @BeforeAll
+    public void start() throws Exception {
+        a = startManager();
+        b = startManager();
+        aId = a.getMyself().getId();
+        TestUtils.connect(a, b);
+        b.getFileManager().subscribe(aId, (FileTaskSubscriber) task -> {
+            if (task.getKey().isDownloadTask())
+                tasks.put(task.getKey().getResId(), task);
+        });
+    }
+
+    private static ChatManagerImpl startManager() throws InterruptedException {
+        ChatManagerImpl manager = TestUtils.newManager(false);
+        manager.getConfig().setFileIndexPath(null);
+        // 只测试单连接下载
+        manager.getConfig().setSegmentThreshold(Long.MAX_VALUE);
+        return TestUtils.start(manager);
+    }
+
+    @AfterAll
+    public void stop() {
+        a.stop();
+        b.stop();
+        for (File file : createdFiles) {
+            file.delete();
+        }
+    }
+
+    private File createFile(int size) throws Exception {
+        byte[] content = new byte[size];
+        new Random().nextBytes(content);
+        File file = File.createTempFile("download", ".bin");
+        createdFiles.add(file);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private FileTask awaitTask(UUID resId, Predicate<FileTask> condition, String message) throws InterruptedException {
+        TestUtils.waitUntil(() -> {
+            FileTask task = tasks.get(resId);
+            return task != null && condition.test(task);
+        }, message);
+        return tasks.get(resId);
+    }
+
+    private File awaitDone(UUID resId) throws InterruptedException {
+        File file = new File(awaitTask(resId, FileTask::isDone, "下载超时").getFilePath());
+        createdFiles.add(file);
+        return file;
+    }
+
+    /**
+     * 限速后开始下载，传输过半时暂停或取消，返回下载任务
+     */
+    private FileTask startAndStop(UUID resId, String name, int size, float state) throws InterruptedException {
+        a.getFileManager().getUploadLimiter().setRate(RATE);
+        try {
+            b.getFileManager().download(aId, resId, name);
+            FileTask task = awaitTask(resId, t -> t.getTransferredBytes() >= size / 2, "下载超时");
+            if (state == FileTask.PAUSED)
+                b.getFileManager().pause(task.getKey());
+            else
+                b.getFileManager().cancel(task.getKey());
+            return awaitTask(resId, t -> t.getProgress() == state, "停止超时");
+        } finally {
+            a.getFileManager().getUploadLimiter().setRate(0);
+        }
+    }
+
+    @Test
+    public void testResumePartFile() throws Exception {
+        int size = 4 * RATE;
+        File source = createFile(size);
+        UUID resId = a.getFileManager().share(source);
+        long sentBytes = a.getFileManager().getTransferStats().getSentBytes();
+        FileTask task = startAndStop(resId, "resume-" + UUID.randomUUID() + ".bin", size, FileTask.PAUSED);
+        File dst = new File(task.getFilePath());
+        createdFiles.add(dst);
+        File part = new File(dst.getPath() + Constants.PART_SUFFIX);
+        createdFiles.add(part);
+        // 临时文件按完整大小分配，目标文件要到完成时才出现
+        Assertions.assertFalse(dst.exists());
+        Assertions.assertEquals(size, part.length());
+        long transferred = task.getTransferredBytes();
+        Assertions.assertTrue(transferred > 0 && transferred < size, "已下载 " + transferred);
+        b.getFileManager().resume(task.getKey());
+        Assertions.assertEquals(dst, awaitDone(resId));
+        Assertions.assertFalse(part.exists());
+        Assertions.assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(dst.toPath()));
+        // 从中断处继续，已收到的部分没有重新发送
+        long resent = a.getFileManager().getTransferStats().getSentBytes() - sentBytes - size;
+        Assertions.assertTrue(resent < transferred, "重复发送 " + resent);
+    }
+
+    @Test
+    public void testCancelDiscardsPartFile() throws Exception {
+        int size = 4 * RATE;
+        File source = createFile(size);
+        // 传输中取消
+        String name = "cancel-" + UUID.randomUUID() + ".bin";
+        UUID resId = a.getFileManager().share(source);
+        FileTask task = startAndStop(resId, name, size, FileTask.CANCELED);
+        File part = new File(Constants.DOWNLOAD_PATH, name + Constants.PART_SUFFIX);
+        createdFiles.add(part);
+        Assertions.assertFalse(part.exists());
+        Assertions.assertEquals(0, task.getTransferredBytes());
+        // 继续时从头下载，名称已释放，不会加序号
+        b.getFileManager().resume(task.getKey());
+        File dst = awaitDone(resId);
+        Assertions.assertEquals(name, dst.getName());
+        Assertions.assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(dst.toPath()));
+        // 暂停后取消
+        String pausedName = "paused-" + UUID.randomUUID() + ".bin";
+        UUID pausedId = a.getFileManager().share(createFile(size));
+        FileTask paused = startAndStop(pausedId, pausedName, size, FileTask.PAUSED);
+        File pausedPart = new File(Constants.DOWNLOAD_PATH, pausedName + Constants.PART_SUFFIX);
+        createdFiles.add(pausedPart);
+        Assertions.assertTrue(pausedPart.exists());
+        b.getFileManager().cancel(paused.getKey());
+        FileTask canceled = awaitTask(pausedId, t -> t.getProgress() == FileTask.CANCELED, "取消超时");
+        Assertions.assertFalse(pausedPart.exists());
+        Assertions.assertNull(canceled.getFilePath());
+    }
+
+    @Test
+    public void testFailedRequestKeepsName() throws Exception {
+        String name = "name-" + UUID.randomUUID() + ".bin";
+        // 对方没有该资源
+        UUID missing = UUID.randomUUID();
+        b.getFileManager().download(aId, missing, name);
+        FileTask failed = awaitTask(missing, task -> task.getProgress() < 0f && task.getProgress() != FileTask.IDLE,
+                "请求超时");
+        Assertions.assertNull(failed.getFilePath());
+        // 名称没有被占用
+        File source = createFile(1000);
+        UUID resId = a.getFileManager().share(source);
+        b.getFileManager().download(aId, resId, name);
+        File downloaded = awaitDone(resId);
+        Assertions.assertEquals(name, downloaded.getName());
+        Assertions.assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(downloaded.toPath()));
+    }
+
+    @Test
+    public void testBatchSkipsLocalCopy() throws Exception {
+        int size = 1000;
+        File original = createFile(size);
+        UUID originalId = a.getFileManager().share(original);
+        b.getFileManager().download(aId, originalId, "local-" + UUID.randomUUID() + ".bin");
+        File local = awaitDone(originalId);
+        // 内容相同的副本和其他小文件一起下载
+        File copy = createFile(size);
+        Files.copy(original.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        List<File> files = Arrays.asList(createFile(size), createFile(size), createFile(size), copy);
+        List<UUID> resIds = new ArrayList<>();
+        long sentBytes = a.getFileManager().getTransferStats().getSentBytes();
+        for (File file : files) {
+            ChatMessage message = ChatMessage.file(file, a.getFileManager().share(file));
+            resIds.add(message.getFile().getResId());
+            b.getFileManager().download(aId, message.getFile());
+        }
+        for (int i = 0; i < files.size() - 1; i++) {
+            File downloaded = awaitDone(resIds.get(i));
+            Assertions.assertArrayEquals(Files.readAllBytes(files.get(i).toPath()), Files.readAllBytes(downloaded.toPath()));
+        }
+        Assertions.assertEquals(local, awaitDone(resIds.get(files.size() - 1)));
+        // 本地已有的文件没有传输
+        Assertions.assertEquals(3 * size, a.getFileManager().getTransferStats().getSentBytes() - sentBytes);
+    }
+
+    @Test
+    public void testCancelInBatch() throws Exception {
+        // 小文件在同一个连接上批量下载
+        int size = RATE / 2;
+        List<File> files = new ArrayList<>();
+        List<UUID> resIds = new ArrayList<>();
+        int cancelIndex = 5;
+        a.getFileManager().getUploadLimiter().setRate(RATE);
+        try {
+            for (int i = 0; i < 8; i++) {
+                File file = createFile(size);
+                files.add(file);
+                ChatMessage message = ChatMessage.file(file, a.getFileManager().share(file));
+                resIds.add(message.getFile().getResId());
+                b.getFileManager().download(aId, message.getFile());
+            }
+            // 限速允许开头的突发，取消排在后面的文件，它已被取走，请求已经发出
+            awaitTask(resIds.get(0), t -> t.getTransferredBytes() > 0, "下载超时");
+            FileTask canceled = awaitTask(resIds.get(cancelIndex), t -> t.getProgress() >= 0f, "下载超时");
+            Assertions.assertFalse(canceled.isDone());
+            b.getFileManager().cancel(canceled.getKey());
+            canceled = awaitTask(resIds.get(cancelIndex), t -> t.getProgress() == FileTask.CANCELED, "取消超时");
+            Assertions.assertFalse(canceled.isDone());
+            Assertions.assertNull(canceled.getFilePath());
+        } finally {
+            a.getFileManager().getUploadLimiter().setRate(0);
+        }
+        // 其余文件照常完成
+        for (int i = 0; i < files.size(); i++) {
+            if (i == cancelIndex) continue;
+            File downloaded = awaitDone(resIds.get(i));
+            Assertions.assertArrayEquals(Files.readAllBytes(files.get(i).toPath()), Files.readAllBytes(downloaded.toPath()));
+        }
+        Assertions.assertEquals(FileTask.CANCELED, tasks.get(resIds.get(cancelIndex)).getProgress());
+    }
+
+    @Test
+    public void testUnannouncedDownloadNotServed() throws Exception {
+        File source = createFile(1000);
+        UUID resId = a.getFileManager().share(source);
+        b.getFileManager().download(aId, resId, "private-" + UUID.randomUUID() + ".bin");
+        awaitDone(resId);
+        // 小文件下载完成后没有告知分享者，b 不向其他用户提供
+        UUID bId = b.getMyself().getId();
+        Map<UUID, FileTask> aTasks = new ConcurrentHashMap<>();
+        a.getFileManager().subscribe(bId, (FileTaskSubscriber) task -> {
+            if (task.getKey().isDownloadTask())
+                aTasks.put(task.getKey().getResId(), task);
+        });
+        a.getFileManager().download(bId, resId, "private.bin");
+        TestUtils.waitUntil(() -> {
+            FileTask task = aTasks.get(resId);
+            return task != null && task.getProgress() < 0f && task.getProgress() != FileTask.IDLE;
+        }, "请求超时");
+        Assertions.assertFalse(aTasks.get(resId).isDone());
+    }
+}
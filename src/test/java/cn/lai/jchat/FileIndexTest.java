@@ -0,0 +1,78 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.FileIndex;
+import cn.lai.jchat.model.FileTask;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.UUID;
+
+public class FileIndexTest {
+
+    @Test
+    public void testReload() throws Exception {
+        File indexFile = File.createTempFile("index", ".log");
+        File shared = File.createTempFile("shared", ".bin");
+        File downloaded = File.createTempFile("downloaded", ".bin");
+        try {
+            Files.write(shared.toPath(), new byte[]{1, 2, 3});
+            Files.write(downloaded.toPath(), new byte[]{4, 5});
+            UUID resId = UUID.randomUUID();
+            FileTask.Key key = new FileTask.Key(true, UUID.randomUUID(), UUID.randomUUID());
+            FileIndex index = new FileIndex(indexFile);
+            index.putShare(resId, shared);
+            index.putDownload(key, downloaded);
+            // 同一个资源多次分享，后面的记录覆盖前面的
+            for (int i = 0; i < 2000; i++) {
+                index.putShare(resId, shared);
+            }
+            index.close();
+
+            index = new FileIndex(indexFile);
+            Assertions.assertEquals(shared.getAbsoluteFile(), index.getShare(resId).getFile());
+            Assertions.assertEquals(resId, index.findShare(shared).getResId());
+            Assertions.assertEquals(2, index.getDownload(key).getLength());
+            Assertions.assertNull(index.getShare(UUID.randomUUID()));
+            // 过期记录已被清理
+            Assertions.assertEquals(2, Files.readAllLines(indexFile.toPath()).size());
+
+            Files.write(downloaded.toPath(), new byte[]{4, 5, 6});
+            Assertions.assertNull(index.getDownload(key));
+            index.close();
+        } finally {
+            indexFile.delete();
+            shared.delete();
+            downloaded.delete();
+        }
+    }
+
+    @Test
+    public void testSkipLineBreakInPath() throws Exception {
+        File indexFile = File.createTempFile("index", ".log");
+        File broken = File.createTempFile("line\nbreak", ".bin");
+        File shared = File.createTempFile("shared", ".bin");
+        try {
+            UUID brokenId = UUID.randomUUID();
+            UUID resId = UUID.randomUUID();
+            FileIndex index = new FileIndex(indexFile);
+            index.putShare(brokenId, broken);
+            index.putShare(resId, shared);
+            // 本次运行中仍然有效
+            Assertions.assertEquals(broken.getAbsoluteFile(), index.getShare(brokenId).getFile());
+            index.close();
+
+            // 没有写入索引，后面的记录不受影响
+            Assertions.assertEquals(1, Files.readAllLines(indexFile.toPath()).size());
+            index = new FileIndex(indexFile);
+            Assertions.assertNull(index.getShare(brokenId));
+            Assertions.assertEquals(shared.getAbsoluteFile(), index.getShare(resId).getFile());
+            index.close();
+        } finally {
+            indexFile.delete();
+            broken.delete();
+            shared.delete();
+        }
+    }
+}
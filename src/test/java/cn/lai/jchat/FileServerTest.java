@@ -0,0 +1,283 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.ChatManagerImpl;
+import cn.lai.jchat.chat.FileDigest;
+import cn.lai.jchat.chat.TransferCodec;
+import cn.lai.jchat.model.FileSession;
+import cn.lai.jchat.model.FileTask;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.File;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * 直接按协议访问文件服务，阻塞和 NIO 两种模式各启动一个服务端，所有测试共用
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class FileServerTest {
+    private static final int OFFSET = 100_000;
+    private final Map<String, Server> servers = new LinkedHashMap<>();
+    private final byte[] content = new byte[256 * 1024 + 3];
+    private File file;
+
+    private static class Server {
+        final ChatManagerImpl manager;
+        final int port;
+        final UUID resId;
+
+        Server(ChatManagerImpl manager, UUID resId) {
+            this.manager = manager;
+            this.port = manager.getChatServer().getServerSocket().getLocalPort();
+            this.resId = resId;
+        }
+    }
+
+    private interface ServerCheck {
+        void check(Server server) throws Throwable;
+    }
+
+    @BeforeAll
+    public void startServers() throws Exception {
+        new Random(2).nextBytes(content);
+        file = File.createTempFile("range", ".bin");
+        Files.write(file.toPath(), content);
+        for (boolean nio : new boolean[]{false, true}) {
+            ChatManagerImpl manager = TestUtils.startManager(nio);
+            servers.put(nio ? "nio" : "blocking", new Server(manager, manager.getFileManager().share(file)));
+        }
+    }
+
+    @AfterAll
+    public void stopServers() {
+        for (Server server : servers.values()) {
+            server.manager.stop();
+        }
+        file.delete();
+    }
+
+    /**
+     * 在每种模式下都检查一遍，一种模式失败不影响另一种
+     */
+    private void forEachServer(ServerCheck check) {
+        List<Executable> checks = new ArrayList<>();
+        for (Map.Entry<String, Server> entry : servers.entrySet()) {
+            checks.add(() -> {
+                try {
+                    check.check(entry.getValue());
+                } catch (AssertionError e) {
+                    throw new AssertionError(entry.getKey() + ": " + e.getMessage(), e);
+                }
+            });
+        }
+        Assertions.assertAll(checks);
+    }
+
+    private static byte[] request(Socket socket, String typeLine, String requestLine, String expectedStatus,
+                                  String expectedSize, int size) throws Exception {
+        BufferedSink sink = Okio.buffer(Okio.sink(socket));
+        BufferedSource source = Okio.buffer(Okio.source(socket));
+        sink.writeUtf8(typeLine + "\n");
+        sink.writeUtf8(UUID.randomUUID() + "\n");
+        sink.writeUtf8(requestLine + "\n");
+        sink.flush();
+        Assertions.assertEquals(expectedStatus, source.readUtf8Line());
+        Assertions.assertEquals(expectedSize, source.readUtf8Line());
+        return source.readByteArray(size);
+    }
+
+    @Test
+    public void testShareAgain() {
+        // 未修改的文件再次分享时 id 不变
+        forEachServer(server -> Assertions.assertEquals(server.resId, server.manager.getFileManager().share(file)));
+    }
+
+    @Test
+    public void testRange() {
+        forEachServer(server -> {
+            try (Socket socket = new Socket("127.0.0.1", server.port)) {
+                byte[] rest = request(socket, FileSession.NAME + " " + FileSession.CAP_RANGE, server.resId + " " + OFFSET,
+                        "OK " + FileSession.CAP_RANGE, content.length + " " + OFFSET, content.length - OFFSET);
+                Assertions.assertArrayEquals(Arrays.copyOfRange(content, OFFSET, content.length), rest);
+            }
+            // 位置超出文件长度时从头发送
+            try (Socket socket = new Socket("127.0.0.1", server.port)) {
+                byte[] all = request(socket, FileSession.NAME + " " + FileSession.CAP_RANGE,
+                        server.resId + " " + (content.length + 1), "OK " + FileSession.CAP_RANGE, content.length + " 0",
+                        content.length);
+                Assertions.assertArrayEquals(content, all);
+            }
+            // 只请求一段
+            try (Socket socket = new Socket("127.0.0.1", server.port)) {
+                byte[] part = request(socket, FileSession.NAME + " " + FileSession.CAP_RANGE,
+                        server.resId + " " + OFFSET + " 1000", "OK " + FileSession.CAP_RANGE,
+                        content.length + " " + OFFSET, 1000);
+                Assertions.assertArrayEquals(Arrays.copyOfRange(content, OFFSET, OFFSET + 1000), part);
+            }
+        });
+    }
+
+    @Test
+    public void testDigest() {
+        forEachServer(server -> {
+            try (Socket socket = new Socket("127.0.0.1", server.port)) {
+                Buffer expected = new Buffer();
+                FileDigest.compute(file).write(expected);
+                String header = expected.readUtf8LineStrict();
+                byte[] digest = request(socket, FileSession.NAME + " " + FileSession.CAP_RANGE + " " + FileSession.CAP_DIGEST,
+                        FileSession.REQUEST_DIGEST + " " + server.resId,
+                        "OK " + FileSession.CAP_RANGE + " " + FileSession.CAP_DIGEST, header, (int) expected.size());
+                Assertions.assertArrayEquals(expected.readByteArray(), digest);
+            }
+        });
+    }
+
+    @Test
+    public void testPipeline() {
+        // 连续发出多个请求，响应按请求 id 依次返回
+        forEachServer(server -> {
+            try (Socket socket = new Socket("127.0.0.1", server.port)) {
+                BufferedSink sink = Okio.buffer(Okio.sink(socket));
+                BufferedSource source = Okio.buffer(Okio.source(socket));
+                sink.writeUtf8(FileSession.NAME + " " + FileSession.CAP_RANGE + " " + FileSession.CAP_PIPELINE + "\n");
+                sink.writeUtf8(UUID.randomUUID() + "\n");
+                sink.writeUtf8(FileSession.REQUEST_GET + " 0 " + server.resId + " 0\n");
+                sink.writeUtf8(FileSession.REQUEST_GET + " 1 " + UUID.randomUUID() + " 0\n");
+                sink.writeUtf8(FileSession.REQUEST_GET + " 2 " + server.resId + " " + OFFSET + "\n");
+                sink.flush();
+                Assertions.assertEquals("OK " + FileSession.CAP_RANGE + " " + FileSession.CAP_PIPELINE, source.readUtf8Line());
+                Assertions.assertEquals("0 " + content.length + " 0", source.readUtf8Line());
+                Assertions.assertArrayEquals(content, source.readByteArray(content.length));
+                Assertions.assertEquals("1 -1", source.readUtf8Line());
+                Assertions.assertEquals("2 " + content.length + " " + OFFSET, source.readUtf8Line());
+                Assertions.assertArrayEquals(Arrays.copyOfRange(content, OFFSET, content.length),
+                        source.readByteArray(content.length - OFFSET));
+            }
+        });
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < 200_000; i++) {
+            builder.append("line ").append(i).append(" of a compressible log file\n");
+        }
+        byte[] textContent = builder.toString().getBytes(StandardCharsets.UTF_8);
+        File text = File.createTempFile("deflate", ".log");
+        try {
+            Files.write(text.toPath(), textContent);
+            // 随机内容不值得压缩，文本压缩后发送，同一连接上的下一个响应不受影响
+            forEachServer(server -> {
+                UUID textId = server.manager.getFileManager().share(text);
+                long sentWireBytes = server.manager.getFileManager().getTransferStats().getSentWireBytes();
+                try (Socket socket = new Socket("127.0.0.1", server.port)) {
+                    BufferedSink sink = Okio.buffer(Okio.sink(socket));
+                    BufferedSource source = Okio.buffer(Okio.source(socket));
+                    sink.writeUtf8(FileSession.NAME + " " + FileSession.CAP_RANGE + " " + FileSession.CAP_DEFLATE + "\n");
+                    sink.writeUtf8(UUID.randomUUID() + "\n");
+                    sink.writeUtf8(textId + " 0\n");
+                    sink.writeUtf8(textId + " " + OFFSET + " 10000\n");
+                    sink.writeUtf8(server.resId + " " + OFFSET + " 1000\n");
+                    sink.flush();
+                    Assertions.assertEquals("OK " + FileSession.CAP_RANGE + " " + FileSession.CAP_DEFLATE, source.readUtf8Line());
+                    Assertions.assertEquals(textContent.length + " 0 " + FileSession.CAP_DEFLATE, source.readUtf8Line());
+                    TransferCodec.Decoder decoder = new TransferCodec.Decoder(source);
+                    Assertions.assertArrayEquals(textContent, decoder.source().readByteArray(textContent.length));
+                    long wireBytes = decoder.finish();
+                    decoder.end();
+                    Assertions.assertEquals(textContent.length + " " + OFFSET + " " + FileSession.CAP_DEFLATE,
+                            source.readUtf8Line());
+                    decoder = new TransferCodec.Decoder(source);
+                    Assertions.assertArrayEquals(Arrays.copyOfRange(textContent, OFFSET, OFFSET + 10000),
+                            decoder.source().readByteArray(10000));
+                    wireBytes += decoder.finish();
+                    decoder.end();
+                    Assertions.assertEquals(content.length + " " + OFFSET, source.readUtf8Line());
+                    Assertions.assertArrayEquals(Arrays.copyOfRange(content, OFFSET, OFFSET + 1000), source.readByteArray(1000));
+                    Assertions.assertTrue(wireBytes < textContent.length / 4, "压缩后 " + wireBytes);
+                    Assertions.assertTrue(server.manager.getFileManager().getTransferStats().getSentWireBytes() > sentWireBytes);
+                }
+            });
+        } finally {
+            text.delete();
+        }
+    }
+
+    @Test
+    public void testSwarm() {
+        // 下载完成的用户登记后，其他下载者可以查到
+        forEachServer(server -> {
+            UUID holder = UUID.randomUUID();
+            try (Socket socket = new Socket("127.0.0.1", server.port)) {
+                BufferedSink sink = Okio.buffer(Okio.sink(socket));
+                BufferedSource source = Okio.buffer(Okio.source(socket));
+                sink.writeUtf8(FileSession.NAME + " " + FileSession.CAP_RANGE + " " + FileSession.CAP_SWARM + "\n");
+                sink.writeUtf8(holder + "\n");
+                sink.writeUtf8(FileSession.REQUEST_HAVE + " " + server.resId + "\n");
+                sink.writeUtf8(FileSession.REQUEST_PEERS + " " + server.resId + "\n");
+                sink.flush();
+                Assertions.assertEquals("OK " + FileSession.CAP_RANGE + " " + FileSession.CAP_SWARM, source.readUtf8Line());
+                // 不包括请求者自己
+                Assertions.assertEquals("", source.readUtf8Line());
+            }
+            try (Socket socket = new Socket("127.0.0.1", server.port)) {
+                byte[] peers = request(socket, FileSession.NAME + " " + FileSession.CAP_RANGE + " " + FileSession.CAP_SWARM,
+                        FileSession.REQUEST_PEERS + " " + server.resId,
+                        "OK " + FileSession.CAP_RANGE + " " + FileSession.CAP_SWARM, holder.toString(), 0);
+                Assertions.assertEquals(0, peers.length);
+            }
+        });
+    }
+
+    @Test
+    public void testControl() {
+        // 暂停后拒绝请求，继续后恢复；本地取消同样生效
+        forEachServer(server -> {
+            UUID controller = UUID.randomUUID();
+            UUID resId = server.resId;
+            try (Socket socket = new Socket("127.0.0.1", server.port)) {
+                BufferedSink sink = Okio.buffer(Okio.sink(socket));
+                BufferedSource source = Okio.buffer(Okio.source(socket));
+                sink.writeUtf8(FileSession.NAME + " " + FileSession.CAP_RANGE + " " + FileSession.CAP_CONTROL + "\n");
+                sink.writeUtf8(controller + "\n");
+                sink.writeUtf8(resId + " 0 10\n");
+                sink.flush();
+                Assertions.assertEquals("OK " + FileSession.CAP_RANGE + " " + FileSession.CAP_CONTROL, source.readUtf8Line());
+                Assertions.assertEquals(content.length + " 0", source.readUtf8Line());
+                Assertions.assertArrayEquals(Arrays.copyOf(content, 10), source.readByteArray(10));
+                sink.writeUtf8(FileSession.REQUEST_PAUSE + " " + resId + "\n");
+                sink.writeUtf8(resId + " 0 10\n");
+                sink.writeUtf8(FileSession.REQUEST_RESUME + " " + resId + "\n");
+                sink.writeUtf8(resId + " 10 10\n");
+                sink.flush();
+                Assertions.assertEquals("OK", source.readUtf8Line());
+                Assertions.assertEquals("-1", source.readUtf8Line());
+                Assertions.assertEquals("OK", source.readUtf8Line());
+                Assertions.assertEquals(content.length + " 10", source.readUtf8Line());
+                Assertions.assertArrayEquals(Arrays.copyOfRange(content, 10, 20), source.readByteArray(10));
+                server.manager.getFileManager().cancel(new FileTask.Key(false, controller, resId));
+                sink.writeUtf8(resId + " 20 10\n");
+                sink.flush();
+                Assertions.assertEquals("-1", source.readUtf8Line());
+            }
+        });
+    }
+
+    @Test
+    public void testLegacyClient() {
+        forEachServer(server -> {
+            try (Socket socket = new Socket("127.0.0.1", server.port)) {
+                byte[] all = request(socket, FileSession.NAME, server.resId.toString(), "OK",
+                        String.valueOf(content.length), content.length);
+                Assertions.assertArrayEquals(content, all);
+            }
+        });
+    }
+}
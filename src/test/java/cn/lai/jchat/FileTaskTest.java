@@ -0,0 +1,46 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.model.FileTask;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+public class FileTaskTest {
+
+    @Test
+    public void testProgress() {
+        FileTask task = new FileTask(new FileTask.Key(true, UUID.randomUUID(), UUID.randomUUID()), "a.bin");
+        Assertions.assertEquals(FileTask.IDLE, task.getProgress());
+        task.setFileSize(1000);
+        Assertions.assertTrue(task.startDownload());
+        task.addTransferredBytes(250);
+        Assertions.assertEquals(0.25f, task.getProgress());
+
+        FileTask snapshot = task.copy();
+        task.addTransferredBytes(250);
+        Assertions.assertEquals(0.25f, snapshot.getProgress());
+        Assertions.assertEquals(0.5f, task.getProgress());
+
+        task.setProgress(FileTask.FAILED);
+        Assertions.assertEquals(FileTask.FAILED, task.getProgress());
+    }
+
+    @Test
+    public void testClaimReport() {
+        FileTask task = new FileTask(new FileTask.Key(true, UUID.randomUUID(), UUID.randomUUID()), "a.bin");
+        task.setFileSize(1000);
+        task.startDownload();
+        long now = 1_000_000;
+        Assertions.assertTrue(task.claimReport(now, 100));
+        // 间隔不够
+        task.addTransferredBytes(100);
+        Assertions.assertFalse(task.claimReport(now + 50, 100));
+        Assertions.assertTrue(task.claimReport(now + 100, 100));
+        // 进度变化不到 1%
+        task.addTransferredBytes(5);
+        Assertions.assertFalse(task.claimReport(now + 500, 100));
+        task.addTransferredBytes(5);
+        Assertions.assertTrue(task.claimReport(now + 500, 100));
+    }
+}
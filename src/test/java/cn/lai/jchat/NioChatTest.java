@@ -0,0 +1,119 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.ChatManagerImpl;
+import cn.lai.jchat.chat.FileTaskSubscriber;
+import cn.lai.jchat.chat.MessageSubscriber;
+import cn.lai.jchat.model.ChatMessage;
+import cn.lai.jchat.model.FileTask;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class NioChatTest {
+
+    private static ChatManagerImpl startManager(boolean nio) throws InterruptedException {
+        ChatManagerImpl manager = TestUtils.newManager(nio);
+        // 小批次，确保合并发送跨越多个批次
+        manager.getConfig().setMaxBatchMessages(8);
+        // 测试文件分块下载
+        manager.getConfig().setSegmentThreshold(1024 * 1024);
+        manager.getConfig().setSegmentSize(256 * 1024);
+        return TestUtils.start(manager);
+    }
+
+    private static class Collector implements MessageSubscriber, FileTaskSubscriber {
+        final List<ChatMessage> messages = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch messageLatch;
+        final CountDownLatch sentLatch;
+        final CountDownLatch fileLatch = new CountDownLatch(1);
+        volatile FileTask doneTask;
+
+        Collector(int count, int sentCount) {
+            messageLatch = new CountDownLatch(count);
+            sentLatch = new CountDownLatch(sentCount);
+        }
+
+        @Override
+        public void onNewMessage(UUID userId, ChatMessage message) {
+            if (message.isMine()) return;
+            messages.add(message);
+            messageLatch.countDown();
+        }
+
+        @Override
+        public void onMessageUpdate(UUID userId, ChatMessage message) {
+            if (message.isMine() && message.getState() == ChatMessage.State.OK)
+                sentLatch.countDown();
+        }
+
+        @Override
+        public void onFileTaskUpdate(FileTask task) {
+            if (task.getKey().isDownloadTask() && task.isDone()) {
+                doneTask = task;
+                fileLatch.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void testChatAndFile() throws Exception {
+        testChatAndFile(true);
+    }
+
+    @Test
+    public void testBlockingChatAndFile() throws Exception {
+        testChatAndFile(false);
+    }
+
+    private void testChatAndFile(boolean nio) throws Exception {
+        final int count = 50;
+        ChatManagerImpl a = startManager(nio);
+        ChatManagerImpl b = startManager(nio);
+        UUID aId = a.getMyself().getId();
+        UUID bId = b.getMyself().getId();
+        Collector aReceived = new Collector(count, count + 1);
+        Collector bReceived = new Collector(count + 1, count);
+        a.getChatClient().subscribe(bId, aReceived);
+        b.getChatClient().subscribe(aId, bReceived);
+        b.getFileManager().subscribe(aId, bReceived);
+        File file = File.createTempFile("nio", ".bin");
+        File downloaded = null;
+        try {
+            TestUtils.connect(a, b);
+            // 双方都是新版本，可以发送打包消息。发起方的会话在收到回复前就已登记
+            TestUtils.waitUntil(() -> a.getSessionManager().findChatSessionByUserId(bId).isArchivable(), "握手超时");
+            Assertions.assertTrue(b.getSessionManager().findChatSessionByUserId(aId).isArchivable());
+            for (int i = 0; i < count; i++) {
+                a.getChatClient().sendMessage(bId, ChatMessage.text("a" + i));
+                b.getChatClient().sendMessage(aId, ChatMessage.text("b" + i));
+            }
+            byte[] content = new byte[3 * 1024 * 1024 + 7];
+            new Random(1).nextBytes(content);
+            Files.write(file.toPath(), content);
+            a.getChatClient().sendMessage(bId, ChatMessage.file(file, a.getFileManager().share(file)));
+
+            Assertions.assertTrue(aReceived.messageLatch.await(10, TimeUnit.SECONDS));
+            Assertions.assertTrue(bReceived.messageLatch.await(10, TimeUnit.SECONDS));
+            Assertions.assertTrue(aReceived.sentLatch.await(10, TimeUnit.SECONDS));
+            Assertions.assertTrue(bReceived.sentLatch.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < count; i++) {
+                Assertions.assertEquals("a" + i, bReceived.messages.get(i).getText());
+                Assertions.assertEquals("b" + i, aReceived.messages.get(i).getText());
+            }
+            Assertions.assertTrue(bReceived.fileLatch.await(10, TimeUnit.SECONDS));
+            downloaded = new File(bReceived.doneTask.getFilePath());
+            Assertions.assertArrayEquals(content, Files.readAllBytes(downloaded.toPath()));
+        } finally {
+            a.stop();
+            b.stop();
+            file.delete();
+            if (downloaded != null)
+                downloaded.delete();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.ChatConfig;
+import cn.lai.jchat.chat.TaskExecutor;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class TaskExecutorTest {
+
+    @Test
+    public void testBoundedPlatformThreads() throws Exception {
+        ChatConfig config = new ChatConfig();
+        config.setVirtualThreadsEnabled(false);
+        config.setMaxPlatformThreads(2);
+        TaskExecutor executor = TaskExecutor.create(config);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        String[] names = new String[2];
+        try {
+            for (int i = 0; i < 2; i++) {
+                final int index = i;
+                executor.execute("task-" + i, () -> {
+                    names[index] = Thread.currentThread().getName();
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                });
+            }
+            Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Assertions.assertEquals("task-0", names[0]);
+            Assertions.assertEquals("task-1", names[1]);
+            Assertions.assertEquals(2, executor.getActiveCount());
+            Assertions.assertThrows(RejectedExecutionException.class, () -> executor.execute("task-2", () -> {
+            }));
+            Assertions.assertEquals(2, executor.getActiveCount());
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (executor.getActiveCount() > 0) {
+                Assertions.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(2, executor.getStartedCount());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        Assertions.assertThrows(RejectedExecutionException.class, () -> executor.execute("task-3", () -> {
+        }));
+    }
+
+    @Test
+    public void testDefaultExecutor() throws Exception {
+        TaskExecutor executor = TaskExecutor.create(new ChatConfig());
+        CountDownLatch latch = new CountDownLatch(100);
+        try {
+            for (int i = 0; i < 100; i++) {
+                executor.execute("task", latch::countDown);
+            }
+            Assertions.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -12,6 +12,16 @@ public class TestChatManager implements ChatManager {
         return null;
     }
 
+    @Override
+    public ChatConfig getConfig() {
+        return null;
+    }
+
+    @Override
+    public TaskExecutor getExecutor() {
+        return null;
+    }
+
     @Override
     public SessionManager getSessionManager() {
         return null;
@@ -0,0 +1,61 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.ChatManagerImpl;
+import cn.lai.jchat.model.OnlineUser;
+import org.junit.jupiter.api.Assertions;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 测试共用的启动和连接步骤
+ */
+public class TestUtils {
+
+    /**
+     * 创建管理器，启动前可以再修改配置
+     */
+    public static ChatManagerImpl newManager(boolean nio) {
+        ChatManagerImpl manager = new ChatManagerImpl();
+        manager.getConfig().setNioEnabled(nio);
+        return manager;
+    }
+
+    /**
+     * 启动并等待服务端套接字创建，阻塞模式下它在监听线程中创建
+     */
+    public static ChatManagerImpl start(ChatManagerImpl manager) throws InterruptedException {
+        manager.start();
+        waitUntil(() -> manager.getChatServer().getServerSocket() != null, "服务端启动超时");
+        return manager;
+    }
+
+    public static ChatManagerImpl startManager(boolean nio) throws InterruptedException {
+        return start(newManager(nio));
+    }
+
+    public static OnlineUser toOnlineUser(ChatManagerImpl manager) {
+        int port = manager.getChatServer().getServerSocket().getLocalPort();
+        return new OnlineUser(manager.getMyself(), "127.0.0.1", port, new Date());
+    }
+
+    /**
+     * a 连接 b，等双方都建立聊天会话
+     */
+    public static void connect(ChatManagerImpl a, ChatManagerImpl b) throws InterruptedException {
+        UUID aId = a.getMyself().getId();
+        UUID bId = b.getMyself().getId();
+        a.getChatClient().connect(toOnlineUser(b));
+        waitUntil(() -> b.getSessionManager().findChatSessionByUserId(aId) != null
+                && a.getSessionManager().findChatSessionByUserId(bId) != null, "连接超时");
+    }
+
+    public static void waitUntil(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, message);
+            Thread.sleep(10);
+        }
+    }
+}
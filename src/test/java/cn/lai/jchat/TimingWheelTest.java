@@ -0,0 +1,46 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.TimingWheel;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testAdvance() {
+        long now = System.currentTimeMillis();
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8);
+        wheel.schedule("a", now + 150);
+        wheel.schedule("b", now + 500);
+        // 超过一圈
+        wheel.schedule("c", now + 2000);
+        Assertions.assertEquals(3, wheel.size());
+        Assertions.assertEquals(Collections.emptyList(), wheel.advance(now));
+        Assertions.assertEquals(Collections.singletonList("a"), wheel.advance(now + 300));
+        Assertions.assertEquals(Collections.emptyList(), wheel.advance(now + 400));
+        Assertions.assertEquals(Collections.singletonList("b"), wheel.advance(now + 1200));
+        Assertions.assertEquals(1, wheel.size());
+        Assertions.assertEquals(Collections.singletonList("c"), wheel.advance(now + 2200));
+        Assertions.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testLongPause() {
+        long now = System.currentTimeMillis();
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8);
+        wheel.schedule("a", now + 100);
+        wheel.schedule("b", now + 700);
+        wheel.schedule("c", now + 5000);
+        List<String> expired = wheel.advance(now + 3000);
+        Collections.sort(expired);
+        Assertions.assertEquals(Arrays.asList("a", "b"), expired);
+        // 过期时间早于当前刻度的元素在下一个刻度到期
+        wheel.schedule("d", now);
+        Assertions.assertEquals(Collections.singletonList("d"), wheel.advance(now + 3100));
+        Assertions.assertEquals(Collections.singletonList("c"), wheel.advance(now + 5100));
+    }
+}
@@ -0,0 +1,27 @@
+package cn.lai.jchat;
+
+import cn.lai.jchat.chat.TokenBucket;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testAcquire() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1024 * 1024);
+        long start = System.currentTimeMillis();
+        // 初始可以突发一秒的量
+        bucket.acquire(1024 * 1024);
+        Assertions.assertTrue(System.currentTimeMillis() - start < 200);
+        start = System.currentTimeMillis();
+        bucket.acquire(512 * 1024);
+        long elapsed = System.currentTimeMillis() - start;
+        Assertions.assertTrue(elapsed >= 400 && elapsed < 1000, "elapsed " + elapsed);
+
+        TokenBucket unlimited = new TokenBucket(0);
+        Assertions.assertFalse(unlimited.isLimited());
+        start = System.currentTimeMillis();
+        unlimited.acquire(Long.MAX_VALUE / 2);
+        Assertions.assertTrue(System.currentTimeMillis() - start < 200);
+    }
+}